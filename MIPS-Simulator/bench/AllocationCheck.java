@@ -0,0 +1,97 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the pipeline's steady-state cycle loop doesn't allocate.
+ *
+ * A generated loop program runs to completion once per configuration to let
+ * the JIT compile the cycle loop, then a fresh simulator runs a ramp of
+ * cycles to fill the pipeline and its pools and the bytes this thread
+ * allocates over the next cycles are read from the ThreadMXBean. A single
+ * object per cycle would be well over the budget, which only allows for
+ * the odd allocation by the JVM itself. Exits with status 1 if any
+ * configuration goes over. Usage:
+ * AllocationCheck [-cycles n] [-budget bytes] [config.properties ...]
+ */
+public class AllocationCheck {
+  private static final int BODY_SIZE  = 16;
+  private static final int ITERATIONS = 50000;
+  private static final int RAMP       = 10000;
+
+  public static void main(String[] args) throws IOException {
+    long cycles = 100000;
+    long budget = 8192;
+    List<String> configPaths = new ArrayList<String>();
+    for (int argNum = 0; argNum < args.length; argNum++) {
+      if (args[argNum].equals("-cycles") && argNum + 1 < args.length) {
+        cycles = Long.parseLong(args[++argNum]);
+      } else if (args[argNum].equals("-budget") && argNum + 1 < args.length) {
+        budget = Long.parseLong(args[++argNum]);
+      } else {
+        configPaths.add(args[argNum]);
+      }
+    }
+    if (allocatedBytes() < 0) {
+      System.out.println("Allocated bytes can't be measured on this JVM, nothing checked");
+      return;
+    }
+    File file = File.createTempFile("mips-allocation", ".txt");
+    int failures = 0;
+    try {
+      ProgramGenerator.writeLoop(file, BODY_SIZE, ITERATIONS);
+      failures += check("default", PipelineConfig.DEFAULT, file, cycles, budget);
+      failures += check("default issue.width=2", PipelineConfig.DEFAULT.withIssueWidth(2), file,
+          cycles, budget);
+      for (String path : configPaths) {
+        failures += check(path, PipelineConfig.load(path), file, cycles, budget);
+      }
+    } finally {
+      file.delete();
+    }
+    if (failures > 0) {
+      System.out.println(failures + " configurations allocate in the cycle loop");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Returns 1 if the configuration allocates more than budget bytes over the
+   * measured cycles, otherwise 0.
+   */
+  private static int check(String name, PipelineConfig config, File file, long cycles,
+      long budget) throws IOException {
+    Simulator warmup = new Simulator(file.getPath(), new NullTrace(), config);
+    warmup.runSimulation();
+    Simulator sim = new Simulator(file.getPath(), new NullTrace(), config);
+    for (int cycle = 0; cycle < RAMP; cycle++) {
+      sim.runCycle();
+    }
+    long measured = 0;
+    long start = allocatedBytes();
+    while (measured < cycles && sim.runCycle()) {
+      measured++;
+    }
+    long bytes = allocatedBytes() - start;
+    boolean ok = measured == cycles && bytes <= budget;
+    System.out.printf("%-40s %8d bytes over %d cycles %s%n", name, bytes, measured,
+        ok ? "ok" : "FAILED");
+    return ok ? 0 : 1;
+  }
+
+  /**
+   * Bytes allocated so far by this thread, or a negative value if the JVM
+   * can't tell.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+          .currentThread().getId());
+    }
+    return -1;
+  }
+}
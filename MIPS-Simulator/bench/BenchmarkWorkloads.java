@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Workloads measured by the JMH benchmarks in jmh/. JMH won't generate code
+ * for classes in the default package, and classes in a named package can't
+ * refer to the simulator's, so the benchmarks look these factories up by
+ * reflection once per trial and then only make interface calls.
+ *
+ * Every factory writes its program with {@link ProgramGenerator} and returns
+ * a setup step: calling it prepares a fresh run outside the timing, and
+ * calling the run returns the units it processed (lines, cycles or
+ * instructions).
+ */
+public class BenchmarkWorkloads {
+  /**
+   * InputParser.parseFile on a straight-line program.
+   */
+  public static Callable<Callable<Long>> parse(int lines) throws IOException {
+    final String path = createProgram("straight");
+    ProgramGenerator.writeStraightLine(new File(path), lines);
+    final Callable<Long> run = new Callable<Long>() {
+      public Long call() throws IOException {
+        InputParser parser = new InputParser(path);
+        parser.parseFile();
+        return (long) parser.getInstructionMemory().size();
+      }
+    };
+    return new Callable<Callable<Long>>() {
+      public Callable<Long> call() {
+        return run;
+      }
+    };
+  }
+
+  /**
+   * Simulator.runSimulation without a trace, counting cycles.
+   */
+  public static Callable<Callable<Long>> pipeline(int bodySize, int iterations)
+      throws IOException {
+    return pipeline(bodySize, iterations, false);
+  }
+
+  /**
+   * Simulator.runSimulation with the {@link Profiler} on, counting cycles.
+   */
+  public static Callable<Callable<Long>> profiled(int bodySize, int iterations)
+      throws IOException {
+    return pipeline(bodySize, iterations, true);
+  }
+
+  private static Callable<Callable<Long>> pipeline(int bodySize, int iterations,
+      final boolean profile) throws IOException {
+    final String path = createLoop(bodySize, iterations);
+    return new Callable<Callable<Long>>() {
+      public Callable<Long> call() throws IOException {
+        final Simulator sim = new Simulator(path, new NullTrace());
+        if (profile) {
+          sim.enableProfiler();
+        }
+        return new Callable<Long>() {
+          public Long call() {
+            sim.runSimulation();
+            if (!sim.isFinished()) {
+              throw new IllegalStateException("Simulation didn't finish");
+            }
+            return sim.getCounters().cycles;
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Translation of every instruction into a fresh {@link BlockCache}, the
+   * decode done once per basic block by the functional model, counting
+   * instructions translated.
+   */
+  public static Callable<Callable<Long>> decode(int bodySize, int iterations)
+      throws IOException {
+    String path = createLoop(bodySize, iterations);
+    InputParser parser = new InputParser(path);
+    parser.parseFile();
+    final List<Instruction> instructionMemory = parser.getInstructionMemory();
+    return new Callable<Callable<Long>>() {
+      public Callable<Long> call() {
+        final BlockCache cache = new BlockCache(instructionMemory, instructionMemory.size());
+        return new Callable<Long>() {
+          public Long call() {
+            long instructions = 0;
+            for (int pc = 0; pc < instructionMemory.size(); pc++) {
+              instructions += cache.getBlock(pc).length;
+            }
+            return instructions;
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * FunctionalSimulator.step, which decodes and executes one instruction at
+   * a time, counting instructions.
+   */
+  public static Callable<Callable<Long>> execute(int bodySize, int iterations)
+      throws IOException {
+    final String path = createLoop(bodySize, iterations);
+    return new Callable<Callable<Long>>() {
+      public Callable<Long> call() throws IOException {
+        final FunctionalSimulator sim = new FunctionalSimulator(path);
+        final int size = sim.getInstructionMemory().size();
+        return new Callable<Long>() {
+          public Long call() {
+            while (sim.getPC() >= 0 && sim.getPC() < size) {
+              sim.step();
+            }
+            return sim.getInstructionsExecuted();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * FunctionalSimulator.run, which executes translated blocks, counting
+   * instructions.
+   */
+  public static Callable<Callable<Long>> functional(int bodySize, int iterations)
+      throws IOException {
+    final String path = createLoop(bodySize, iterations);
+    return new Callable<Callable<Long>>() {
+      public Callable<Long> call() throws IOException {
+        final FunctionalSimulator sim = new FunctionalSimulator(path);
+        return new Callable<Long>() {
+          public Long call() {
+            sim.run();
+            return sim.getInstructionsExecuted();
+          }
+        };
+      }
+    };
+  }
+
+  private static String createLoop(int bodySize, int iterations) throws IOException {
+    String path = createProgram("loop" + bodySize);
+    ProgramGenerator.writeLoop(new File(path), bodySize, iterations);
+    return path;
+  }
+
+  private static String createProgram(String name) throws IOException {
+    File file = File.createTempFile("mips-" + name + "-", ".txt");
+    file.deleteOnExit();
+    return file.getPath();
+  }
+}
@@ -0,0 +1,134 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Generates input programs for the benchmarks.
+ *
+ * Loop programs repeat a body of DADD/SUB/LD/SD instructions a given number
+ * of times, counting down R1 with BNEZ. The body reads a 64 word array at
+ * address 0 through R2 and includes load-use hazards, forwarding from every
+ * stage and a taken branch per iteration, so the long runs exercise the whole
+ * pipeline.
+ *
+ * Phased programs run several such loops one after the other, alternating
+ * the hazard-heavy body with one of independent DADDs, so the CPI changes
+ * over the run.
+ */
+public class ProgramGenerator {
+  private static final int ARRAY_WORDS = 64;
+
+  /**
+   * Writes a program that runs bodySize instructions per iteration.
+   */
+  public static void writeLoop(File file, int bodySize, int iterations) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+    try {
+      writeData(writer, iterations);
+      for (int i = 0; i < bodySize; i++) {
+        writer.write((i == 0) ? "LOOP: " : "      ");
+        writer.write(bodyInstruction(i));
+        writer.newLine();
+      }
+      writer.write("      SUB R1, R1, #1");
+      writer.newLine();
+      writer.write("      BNEZ R1, LOOP");
+      writer.newLine();
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Writes a program of one loop per entry of bodySizes, each running
+   * iterations times. Odd numbered loops have no hazards.
+   */
+  public static void writePhased(File file, int[] bodySizes, int iterations)
+      throws IOException {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+    try {
+      writeData(writer, iterations);
+      for (int phase = 0; phase < bodySizes.length; phase++) {
+        writer.write("      DADD R1, R0, #" + iterations);
+        writer.newLine();
+        for (int i = 0; i < bodySizes[phase]; i++) {
+          writer.write((i == 0) ? "LOOP" + phase + ": " : "      ");
+          if (phase % 2 == 0) {
+            writer.write(bodyInstruction(i));
+          } else {
+            int reg = 3 + i % 9;
+            writer.write("DADD R" + reg + ", R" + reg + ", #1");
+          }
+          writer.newLine();
+        }
+        writer.write("      SUB R1, R1, #1");
+        writer.newLine();
+        writer.write("      BNEZ R1, LOOP" + phase);
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Writes a program of the given number of instructions with no loop, for
+   * measuring the parser.
+   */
+  public static void writeStraightLine(File file, int lines) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+    try {
+      writeData(writer, 1);
+      for (int i = 0; i < lines; i++) {
+        writer.write("      ");
+        writer.write(bodyInstruction(i));
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static void writeData(BufferedWriter writer, int iterations) throws IOException {
+    writer.write("REGISTERS");
+    writer.newLine();
+    writer.write("R1 " + iterations);
+    writer.newLine();
+    writer.write("R2 0");
+    writer.newLine();
+    for (int regNum = 3; regNum < 12; regNum++) {
+      writer.write("R" + regNum + " " + regNum);
+      writer.newLine();
+    }
+    writer.write("MEMORY");
+    writer.newLine();
+    for (int word = 0; word < ARRAY_WORDS; word++) {
+      writer.write((word * 8) + " " + word);
+      writer.newLine();
+    }
+    writer.write("CODE");
+    writer.newLine();
+  }
+
+  private static String bodyInstruction(int i) {
+    int offset = (i * 8) % (ARRAY_WORDS * 8);
+    int dest = 3 + i % 9;
+    int src = 3 + (i + 4) % 9;
+    switch (i % 6) {
+    case 0:
+      return "LD R" + dest + ", " + offset + "(R2)";
+    case 1:
+      // Uses the load above: load-use stall
+      return "DADD R" + dest + ", R" + (3 + (i - 1) % 9) + ", R" + src;
+    case 2:
+      return "SUB R" + dest + ", R" + src + ", #1";
+    case 3:
+      return "DADD R" + dest + ", R" + (3 + (i - 1) % 9) + ", R" + (3 + (i - 2) % 9);
+    case 4:
+      return "SD R" + (3 + (i - 1) % 9) + ", " + offset + "(R2)";
+    default:
+      return "DADD R" + dest + ", R" + src + ", #" + i;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Checks the estimates of {@link SampledSimulator} against full detailed
+ * runs of generated programs.
+ *
+ * For every program the CPI, load-use stall rate and branch flush rate of a
+ * full {@link Simulator} run are printed next to the sampled estimate, its
+ * 95% confidence interval and whether the interval covers the real value,
+ * followed by the speedup of the sampled run. The final machine states of
+ * both runs are also compared. Usage:
+ * SamplingValidation [-iterations n] [-period n] [-warmup n] [-window n]
+ */
+public class SamplingValidation {
+  private static final int[]   LOOP_SIZES   = { 4, 16, 64 };
+  private static final int[][] PHASE_SIZES  = { { 8, 8 }, { 16, 4, 32, 12 } };
+
+  private int                  iterations   = 20000;
+  private long                 period       = 10000;
+  private long                 warmup       = 50;
+  private long                 window       = 1000;
+  private int                  misses       = 0;
+
+  public static void main(String[] args) throws IOException {
+    SamplingValidation validation = new SamplingValidation();
+    for (int argNum = 0; argNum + 1 < args.length; argNum += 2) {
+      long value = Long.parseLong(args[argNum + 1]);
+      if (args[argNum].equals("-iterations")) {
+        validation.iterations = (int) value;
+      } else if (args[argNum].equals("-period")) {
+        validation.period = value;
+      } else if (args[argNum].equals("-warmup")) {
+        validation.warmup = value;
+      } else if (args[argNum].equals("-window")) {
+        validation.window = value;
+      }
+    }
+    File file = File.createTempFile("mips-sampling", ".txt");
+    try {
+      validation.run(file);
+    } finally {
+      file.delete();
+    }
+  }
+
+  private void run(File file) throws IOException {
+    System.out.printf("%-16s %-8s %10s %10s %10s %8s %3s%n", "program", "metric", "full",
+        "sampled", "+/-", "error%", "in");
+    for (int size : LOOP_SIZES) {
+      ProgramGenerator.writeLoop(file, size, iterations);
+      validate("loop" + size, file);
+    }
+    for (int[] sizes : PHASE_SIZES) {
+      ProgramGenerator.writePhased(file, sizes, iterations / sizes.length);
+      validate("phased" + sizes.length, file);
+    }
+    System.out.println(misses + " estimates outside their confidence interval");
+  }
+
+  private void validate(String name, File file) throws IOException {
+    long start = System.nanoTime();
+    Simulator full = new Simulator(file.getPath(), new NullTrace());
+    full.runSimulation();
+    long fullNanos = System.nanoTime() - start;
+    PerformanceCounters counters = full.getCounters();
+    double instructions = counters.instructionsRetired;
+
+    start = System.nanoTime();
+    SampledSimulator sampled = new SampledSimulator(file.getPath(), period, warmup, window, 1);
+    sampled.run();
+    long sampledNanos = System.nanoTime() - start;
+
+    compare(name, "CPI", counters.getCPI(), sampled.getCPI());
+    compare(name, "stalls", counters.loadUseStalls / instructions, sampled.getStallRate());
+    compare(name, "flushes", counters.branchFlushes / instructions, sampled.getFlushRate());
+    System.out.printf("%-16s %d samples, %.1fx faster, final state %s%n", name,
+        sampled.getCPI().getCount(), (double) fullNanos / sampledNanos,
+        FunctionalSimulator.sameState(full.getMachineState(), sampled.getMachineState())
+            ? "matches" : "DIFFERS");
+  }
+
+  private void compare(String name, String metric, double actual,
+      SampledSimulator.Estimate estimate) {
+    double mean = estimate.getMean();
+    double halfWidth = estimate.getHalfWidth(SampledSimulator.Z_95);
+    // A zero-variance estimate counts as covering values within rounding
+    boolean covered = Math.abs(mean - actual) <= halfWidth + 1e-3 * Math.abs(actual);
+    if (!covered) {
+      misses++;
+    }
+    System.out.printf("%-16s %-8s %10.4f %10.4f %10.4f %8.2f %3s%n", name, metric, actual, mean,
+        halfWidth, (actual != 0) ? 100 * (mean - actual) / actual : 0, covered ? "y" : "n");
+  }
+}
@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Throughput benchmarks for the simulator hot paths:
+ *
+ * <ul>
+ * <li>parse: {@link InputParser#parseFile()} on straight-line programs</li>
+ * <li>pipeline: simulated cycles per second of
+ * {@link Simulator#runSimulation()} with tracing off, and bytes allocated per
+ * cycle</li>
+ * <li>functional: executed instructions per second of
+ * {@link FunctionalSimulator#run()}</li>
+ * </ul>
+ *
+ * Every measurement is repeated after warm-up runs so the JIT has compiled
+ * the code being timed. For the pipeline runs the bytes per cycle column
+ * should stay at zero apart from the final results dump; AllocationCheck
+ * fails the build if it doesn't. Usage:
+ * SimulatorBenchmark [-warmup n] [-runs n] [-iterations n]
+ *
+ * This is a quick check that needs no build. Numbers to compare across
+ * changes come from the JMH benchmarks in jmh/, run with gradle jmh, which
+ * fork a fresh JVM and report error bounds.
+ */
+public class SimulatorBenchmark {
+  private static final int[] PARSE_SIZES = { 1000, 10000, 100000 };
+  private static final int[] LOOP_SIZES  = { 4, 16, 64 };
+
+  private int                warmupRuns  = 5;
+  private int                measuredRuns = 10;
+  private int                iterations  = 20000;
+  private File               workDir;
+
+  private abstract static class Task {
+    /**
+     * Sets up the next run. Not included in the timing.
+     */
+    void prepare() throws IOException {
+    }
+
+    /**
+     * Runs once and returns the number of units (lines, cycles or
+     * instructions) processed.
+     */
+    abstract long run() throws IOException;
+  }
+
+  public static void main(String[] args) throws IOException {
+    SimulatorBenchmark bench = new SimulatorBenchmark();
+    for (int argNum = 0; argNum + 1 < args.length; argNum += 2) {
+      int value = Integer.parseInt(args[argNum + 1]);
+      if (args[argNum].equals("-warmup")) {
+        bench.warmupRuns = value;
+      } else if (args[argNum].equals("-runs")) {
+        bench.measuredRuns = value;
+      } else if (args[argNum].equals("-iterations")) {
+        bench.iterations = value;
+      }
+    }
+    bench.workDir = createWorkDir();
+    try {
+      bench.run();
+    } finally {
+      for (File file : bench.workDir.listFiles()) {
+        file.delete();
+      }
+      bench.workDir.delete();
+    }
+  }
+
+  private static File createWorkDir() throws IOException {
+    File dir = File.createTempFile("mips-bench", "");
+    dir.delete();
+    if (!dir.mkdir()) {
+      throw new IOException("Couldn't create " + dir);
+    }
+    return dir;
+  }
+
+  private void run() throws IOException {
+    System.out.printf("%-28s %14s %14s %12s%n", "benchmark", "units/s", "ms/run", "bytes/unit");
+    for (int size : PARSE_SIZES) {
+      final File file = new File(workDir, "straight" + size + ".txt");
+      ProgramGenerator.writeStraightLine(file, size);
+      measure("parse " + size + " lines", new Task() {
+        long run() throws IOException {
+          InputParser parser = new InputParser(file.getPath());
+          parser.parseFile();
+          return parser.getInstructionMemory().size();
+        }
+      });
+    }
+    for (int size : LOOP_SIZES) {
+      final File file = new File(workDir, "loop" + size + ".txt");
+      ProgramGenerator.writeLoop(file, size, iterations);
+      measure("pipeline body " + size + " (cycles)", new Task() {
+        private Simulator sim;
+
+        void prepare() throws IOException {
+          sim = new Simulator(file.getPath(), new NullTrace());
+        }
+
+        long run() {
+          sim.runSimulation();
+          return sim.getCounters().cycles;
+        }
+      });
+      measure("functional body " + size + " (instr)", new Task() {
+        private FunctionalSimulator sim;
+
+        void prepare() throws IOException {
+          sim = new FunctionalSimulator(file.getPath());
+        }
+
+        long run() {
+          sim.run();
+          return sim.getInstructionsExecuted();
+        }
+      });
+    }
+  }
+
+  private void measure(String name, Task task) throws IOException {
+    for (int i = 0; i < warmupRuns; i++) {
+      task.prepare();
+      task.run();
+    }
+    long units = 0;
+    long nanos = 0;
+    long bytes = 0;
+    for (int i = 0; i < measuredRuns; i++) {
+      task.prepare();
+      long startBytes = allocatedBytes();
+      long start = System.nanoTime();
+      units += task.run();
+      nanos += System.nanoTime() - start;
+      bytes += allocatedBytes() - startBytes;
+    }
+    double unitsPerSecond = units / (nanos / 1e9);
+    double msPerRun = nanos / 1e6 / measuredRuns;
+    String bytesPerUnit = (bytes >= 0) ? String.format("%.3f", (double) bytes / units) : "n/a";
+    System.out.printf("%-28s %14.0f %14.3f %12s%n", name, unitsPerSecond, msPerRun, bytesPerUnit);
+  }
+
+  /**
+   * Bytes allocated so far by this thread, or a negative value if the JVM
+   * can't tell.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+          .currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs Simulator -verify, which checks the pipeline's final registers and
+ * memory against the functional model, over the given programs and a few
+ * generated ones under the default pipeline and every given config.
+ *
+ * Each run is a separate JVM on this classpath, so a run that exits or
+ * crashes is reported like any other mismatch, and runs are stopped at a
+ * cycle limit so a pipeline that never finishes fails instead of hanging.
+ * Exits with status 1 if any run fails. Usage:
+ * VerifyCheck [program.txt | config.properties]...
+ */
+public class VerifyCheck {
+  private static final int[]   LOOP_SIZES  = { 4, 16 };
+  private static final int[][] PHASE_SIZES = { { 8, 8 }, { 16, 4, 32, 12 } };
+  private static final int     ITERATIONS  = 200;
+  private static final long    CYCLE_LIMIT = 10000000; // Far beyond any of the programs
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    List<String> programs = new ArrayList<String>();
+    List<String> configs = new ArrayList<String>();
+    configs.add(null);
+    for (String arg : args) {
+      if (arg.endsWith(".properties")) {
+        configs.add(arg);
+      } else {
+        programs.add(arg);
+      }
+    }
+    File workDir = createWorkDir();
+    File output = new File(workDir, "verify.out");
+    int failures = 0;
+    try {
+      for (int size : LOOP_SIZES) {
+        File file = new File(workDir, "loop" + size + ".txt");
+        ProgramGenerator.writeLoop(file, size, ITERATIONS);
+        programs.add(file.getPath());
+      }
+      for (int[] sizes : PHASE_SIZES) {
+        File file = new File(workDir, "phased" + sizes.length + ".txt");
+        ProgramGenerator.writePhased(file, sizes, ITERATIONS);
+        programs.add(file.getPath());
+      }
+      for (String config : configs) {
+        for (String program : programs) {
+          failures += verify(program, config, output);
+        }
+      }
+    } finally {
+      for (File file : workDir.listFiles()) {
+        file.delete();
+      }
+      workDir.delete();
+    }
+    if (failures > 0) {
+      System.out.println(failures + " runs failed verification");
+      System.exit(1);
+    }
+  }
+
+  private static File createWorkDir() throws IOException {
+    File dir = File.createTempFile("mips-verify", "");
+    dir.delete();
+    if (!dir.mkdir()) {
+      throw new IOException("Couldn't create " + dir);
+    }
+    return dir;
+  }
+
+  /**
+   * Returns 1 if the run doesn't report matching results, otherwise 0.
+   */
+  private static int verify(String program, String config, File output)
+      throws IOException, InterruptedException {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("Simulator");
+    command.add("-verify");
+    command.add("-trace");
+    command.add("none");
+    command.add("-max-cycles");
+    command.add(String.valueOf(CYCLE_LIMIT));
+    if (config != null) {
+      command.add("-pipeline");
+      command.add(config);
+    }
+    command.add(program);
+    command.add(output.getPath());
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    boolean matched = false;
+    StringBuilder log = new StringBuilder();
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        log.append("  ").append(line).append('\n');
+        if (line.equals("Pipeline and functional results match.")) {
+          matched = true;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    int status = process.waitFor();
+    boolean ok = matched && status == 0;
+    System.out.printf("%-16s %-24s %s%n", new File(program).getName(),
+        (config != null) ? config : "default", ok ? "ok" : "FAILED (exit " + status + ")");
+    if (!ok) {
+      System.out.print(log);
+    }
+    return ok ? 0 : 1;
+  }
+}
@@ -0,0 +1,130 @@
+package mips;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the simulator hot paths over generated programs:
+ *
+ * <ul>
+ * <li>parse: lines per second of InputParser.parseFile</li>
+ * <li>pipeline: simulated cycles per second of Simulator.runSimulation with
+ * tracing off</li>
+ * <li>profiled: the same with the Profiler on</li>
+ * <li>decode: instructions per second translated into basic blocks</li>
+ * <li>execute: instructions per second decoded and executed one at a time by
+ * FunctionalSimulator.step</li>
+ * <li>functional: instructions per second of FunctionalSimulator.run over
+ * translated blocks</li>
+ * </ul>
+ *
+ * The rates are reported as the "units" secondary result; the primary score
+ * counts whole runs. Each run gets a freshly loaded program outside the
+ * timing. The workloads are built by BenchmarkWorkloads in bench/.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SimulatorBenchmarks {
+  /**
+   * Units processed, reported per second.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Units {
+    public long units;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      units = 0;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ParseProgram extends Workload {
+    @Param({ "1000", "10000", "100000" })
+    public int lines;
+
+    @Setup(Level.Trial)
+    public void create() throws Exception {
+      create("parse", lines);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class LoopProgram extends Workload {
+    @Param({ "pipeline", "profiled", "decode", "execute", "functional" })
+    public String workload;
+
+    @Param({ "4", "16", "64" })
+    public int bodySize;
+
+    @Param({ "20000" })
+    public int iterations;
+
+    @Setup(Level.Trial)
+    public void create() throws Exception {
+      create(workload, bodySize, iterations);
+    }
+  }
+
+  /**
+   * A workload looked up by name and prepared before every run.
+   */
+  public abstract static class Workload {
+    private Callable<Callable<Long>> setup;
+    private Callable<Long>           run;
+
+    @SuppressWarnings("unchecked")
+    void create(String name, int... sizes) throws Exception {
+      Class<?>[] types = new Class<?>[sizes.length];
+      Object[] values = new Object[sizes.length];
+      for (int i = 0; i < sizes.length; i++) {
+        types[i] = int.class;
+        values[i] = sizes[i];
+      }
+      Method factory = Class.forName("BenchmarkWorkloads").getMethod(name, types);
+      setup = (Callable<Callable<Long>>) factory.invoke(null, values);
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+      run = setup.call();
+    }
+
+    long run() throws Exception {
+      return run.call();
+    }
+  }
+
+  @Benchmark
+  public long parse(ParseProgram program, Units units) throws Exception {
+    long lines = program.run();
+    units.units += lines;
+    return lines;
+  }
+
+  @Benchmark
+  public long loop(LoopProgram program, Units units) throws Exception {
+    long processed = program.run();
+    units.units += processed;
+    return processed;
+  }
+}
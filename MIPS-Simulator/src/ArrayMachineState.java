@@ -0,0 +1,87 @@
+/**
+ * {@link MachineState} with a fixed int[] register file and a
+ * {@link PagedMemory} main memory. Addresses covered by a mapped
+ * {@link MemoryImage} are served from the image instead.
+ */
+public class ArrayMachineState implements MachineState {
+  private long[]        registers;
+  private int           registersSet; // Bit n is set once Rn holds a value
+  private PagedMemory   memory;
+  private MemoryImage[] images;
+
+  public ArrayMachineState() {
+    registers = new long[NUM_REGISTERS];
+    registersSet = 0;
+    memory = new PagedMemory();
+    images = new MemoryImage[0];
+  }
+
+  /**
+   * Returns a copy that shares this state's memory pages until either side
+   * writes to them; see {@link PagedMemory#copy()}.
+   *
+   * @throws IllegalStateException if an image is mapped, since images can't
+   *           be copied
+   */
+  public ArrayMachineState copy() {
+    if (images.length > 0) {
+      throw new IllegalStateException("Memory images can't be copied");
+    }
+    ArrayMachineState copy = new ArrayMachineState();
+    copy.registers = registers.clone();
+    copy.registersSet = registersSet;
+    copy.memory = memory.copy();
+    return copy;
+  }
+
+  /**
+   * Maps an image into the address space. Stores to addresses inside it go to
+   * the image from now on.
+   */
+  public void mapImage(MemoryImage image) {
+    MemoryImage[] mapped = new MemoryImage[images.length + 1];
+    System.arraycopy(images, 0, mapped, 0, images.length);
+    mapped[images.length] = image;
+    images = mapped;
+  }
+
+  public long getRegister(int regNum) {
+    return registers[regNum];
+  }
+
+  public void setRegister(int regNum, long value) {
+    registers[regNum] = value;
+    registersSet |= 1 << regNum;
+  }
+
+  public boolean isRegisterSet(int regNum) {
+    return (registersSet & (1 << regNum)) != 0;
+  }
+
+  public long load(int address) {
+    for (MemoryImage image : images) {
+      if (image.contains(address)) {
+        return image.load(address);
+      }
+    }
+    return memory.load(address);
+  }
+
+  public void store(int address, long value) {
+    for (MemoryImage image : images) {
+      if (image.contains(address)) {
+        image.store(address, value);
+        return;
+      }
+    }
+    memory.store(address, value);
+  }
+
+  public int[] getAddresses() {
+    return memory.getAddresses();
+  }
+
+  public MemoryImage[] getImages() {
+    return images;
+  }
+}
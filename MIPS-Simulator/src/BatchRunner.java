@@ -0,0 +1,219 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many input programs through independent {@link Simulator}s on a fixed
+ * thread pool.
+ *
+ * Inputs come from every file in a directory or from a manifest listing one
+ * input path per line (relative paths are resolved against the manifest's
+ * directory, blank lines and lines starting with # are skipped). Each run
+ * writes its trace to its own file in the output directory, and the results
+ * are collected into a summary table.
+ */
+public class BatchRunner {
+  private List<String>   inputPaths;
+  private String         outputDir;
+  private int            threads;
+  private TraceLevel     level;
+  private boolean        binary;
+  private PipelineConfig config;
+
+  /**
+   * Outcome of one simulation run.
+   */
+  public static class Result {
+    public String inputPath;
+    public String outputPath;
+    public long   cycles;
+    public long   instructions;
+    public long   stalls;
+    public long   elapsedNanos;
+    public String error; // Null if the run completed
+
+    public double getCPI() {
+      return (instructions > 0) ? (double) cycles / instructions : 0;
+    }
+  }
+
+  public BatchRunner(String source, String outputDir, int threads, TraceLevel level,
+      boolean binary) throws IOException {
+    this.inputPaths = listInputs(new File(source));
+    this.outputDir = outputDir;
+    this.threads = threads;
+    this.level = level;
+    this.binary = binary;
+    config = PipelineConfig.DEFAULT;
+  }
+
+  /**
+   * Sets the pipeline every input is simulated on.
+   */
+  public void setPipelineConfig(PipelineConfig config) {
+    this.config = config;
+  }
+
+  /**
+   * Lists the inputs in a directory or manifest, as described above.
+   */
+  static List<String> listInputs(File source) throws IOException {
+    List<String> paths = new ArrayList<String>();
+    if (source.isDirectory()) {
+      File[] files = source.listFiles();
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.isFile()) {
+          paths.add(file.getPath());
+        }
+      }
+    } else {
+      BufferedReader reader = new BufferedReader(new FileReader(source));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.length() == 0 || line.startsWith("#")) {
+            continue;
+          }
+          File file = new File(line);
+          if (!file.isAbsolute()) {
+            file = new File(source.getAbsoluteFile().getParentFile(), line);
+          }
+          paths.add(file.getPath());
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Picks an output file name for every input, keeping names unique.
+   */
+  private List<String> outputPaths() {
+    List<String> outputs = new ArrayList<String>();
+    Set<String> used = new HashSet<String>();
+    String extension = binary ? ".bin" : ".out";
+    for (String inputPath : inputPaths) {
+      String name = new File(inputPath).getName();
+      int dot = name.lastIndexOf('.');
+      if (dot > 0) {
+        name = name.substring(0, dot);
+      }
+      String unique = name;
+      for (int n = 2; !used.add(unique); n++) {
+        unique = name + "-" + n;
+      }
+      outputs.add(new File(outputDir, unique + extension).getPath());
+    }
+    return outputs;
+  }
+
+  /**
+   * Runs every input and returns the results in input order.
+   */
+  public List<Result> run() throws InterruptedException {
+    new File(outputDir).mkdirs();
+    List<String> outputs = outputPaths();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Result>> futures = new ArrayList<Future<Result>>();
+    try {
+      for (int i = 0; i < inputPaths.size(); i++) {
+        final String inputPath = inputPaths.get(i);
+        final String outputPath = outputs.get(i);
+        futures.add(executor.submit(new Callable<Result>() {
+          public Result call() {
+            return runOne(inputPath, outputPath);
+          }
+        }));
+      }
+      List<Result> results = new ArrayList<Result>();
+      for (Future<Result> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private Result runOne(String inputPath, String outputPath) {
+    Result result = new Result();
+    result.inputPath = inputPath;
+    result.outputPath = outputPath;
+    long start = System.nanoTime();
+    Trace trace = null;
+    try {
+      trace = Simulator.createTrace(outputPath, level, false, binary, config.getLabels());
+      Simulator sim = new Simulator(inputPath, trace, config);
+      trace = null; // Closed by runSimulation
+      sim.runSimulation();
+      if (sim.getOutputError() != null) {
+        result.error = sim.getOutputError().toString();
+      }
+      PerformanceCounters counters = sim.getCounters();
+      result.cycles = counters.cycles;
+      result.instructions = counters.instructionsRetired;
+      result.stalls = counters.loadUseStalls;
+    } catch (Exception e) {
+      result.error = e.toString();
+      if (trace != null) {
+        try {
+          trace.close();
+        } catch (IOException closeError) {
+          // Already reporting the first error
+        }
+      }
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * Writes one line per run followed by the totals.
+   */
+  public static void printSummary(List<Result> results, PrintStream out) {
+    String format = "%-40s %10s %12s %8s %7s %10s  %s%n";
+    out.printf(format, "input", "cycles", "instructions", "stalls", "CPI", "ms", "status");
+    long cycles = 0;
+    long instructions = 0;
+    long stalls = 0;
+    long elapsedNanos = 0;
+    int failed = 0;
+    for (Result result : results) {
+      String status = "ok";
+      if (result.error != null) {
+        status = result.error;
+        failed++;
+      }
+      out.printf(format, result.inputPath, result.cycles, result.instructions, result.stalls,
+          String.format("%.3f", result.getCPI()),
+          String.format("%.1f", result.elapsedNanos / 1e6), status);
+      cycles += result.cycles;
+      instructions += result.instructions;
+      stalls += result.stalls;
+      elapsedNanos += result.elapsedNanos;
+    }
+    String cpi = String.format("%.3f", (instructions > 0) ? (double) cycles / instructions : 0);
+    out.printf(format, "TOTAL (" + results.size() + " runs, " + failed + " failed)", cycles,
+        instructions, stalls, cpi, String.format("%.1f", elapsedNanos / 1e6), "");
+  }
+}
@@ -0,0 +1,230 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the trace as compact binary records through a {@link FileChannel}.
+ *
+ * The file starts with a header of {@link #MAGIC}, {@link #VERSION} and the
+ * stage labels (a count followed by length-prefixed ASCII strings). Every
+ * record after it is a type byte followed by its numbers:
+ *
+ * <pre>
+ * BEGIN_CYCLE      cycle
+ * stage            instruction number
+ * END_CYCLE
+ * BEGIN_REGISTERS
+ * REGISTER         register number, value
+ * BEGIN_MEMORY
+ * MEMORY           address, value
+ * </pre>
+ *
+ * A stage record's type is its stage event with {@link #STAGE} set, and its
+ * instruction number is the difference from the previous stage record of the
+ * cycle, or from 0 for the first. Numbers are zigzag varints, seven bits a
+ * byte with the top bit set on all but the last, so small values of either
+ * sign take one byte and a stage event in a steady pipeline takes two.
+ *
+ * {@link TraceDecoder} turns the file back into the text format.
+ */
+public class BinaryTrace implements Trace {
+  public static final int  MAGIC           = 0x4D495053; // "MIPS"
+  public static final int  VERSION         = 3;
+  /* Record types */
+  public static final byte BEGIN_CYCLE     = 1;
+  public static final byte END_CYCLE       = 2;
+  public static final byte BEGIN_REGISTERS = 3;
+  public static final byte REGISTER        = 4;
+  public static final byte BEGIN_MEMORY    = 5;
+  public static final byte MEMORY          = 6;
+  public static final int  STAGE           = 0x80; // Set with the event in a stage record
+
+  private static final int MAX_RECORD_SIZE = 16;    // Type, int and long varints
+  private static final int BUFFER_SIZE     = 64 * 1024;
+
+  private FileChannel      channel;
+  private ByteBuffer       buffer;
+  private boolean          traceCycles;
+  private boolean          traceResults;
+  private int              lastInstruction; // Of the previous stage record this cycle
+  private IOException      writeError;      // First failed write, for checkpoint() and close()
+
+  public BinaryTrace(String outputPath, TraceLevel level, String[] labels) throws IOException {
+    if (labels.length > STAGE) {
+      throw new IllegalArgumentException("A binary trace holds at most " + STAGE + " stages");
+    }
+    channel = new FileOutputStream(outputPath).getChannel();
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    traceCycles = level == TraceLevel.FULL;
+    traceResults = level != TraceLevel.NONE;
+    writeHeader(labels);
+  }
+
+  /**
+   * Continues a trace from a checkpoint. The file is cut back to
+   * resumePosition, which is between cycles, and records are appended after
+   * it; the header is already in place.
+   */
+  public BinaryTrace(String outputPath, long resumePosition, TraceLevel level)
+      throws IOException {
+    long headerLength = readHeaderLength(outputPath);
+    if (resumePosition < headerLength) {
+      throw new IOException("Checkpoint is inside the header of " + outputPath);
+    }
+    Checkpoint.truncate(outputPath, resumePosition);
+    RandomAccessFile file = new RandomAccessFile(outputPath, "rw");
+    channel = file.getChannel();
+    channel.position(resumePosition);
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    traceCycles = level == TraceLevel.FULL;
+    traceResults = level != TraceLevel.NONE;
+  }
+
+  private static long readHeaderLength(String path) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(path)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(path + " is not a binary trace!");
+      }
+      in.readInt();
+      int labelCount = in.readInt();
+      long length = 12;
+      for (int i = 0; i < labelCount; i++) {
+        int labelLength = in.readShort();
+        in.readFully(new byte[labelLength]);
+        length += 2 + labelLength;
+      }
+      return length;
+    } finally {
+      in.close();
+    }
+  }
+
+  private void writeHeader(String[] labels) throws IOException {
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(labels.length);
+    for (String label : labels) {
+      buffer.putShort((short) label.length());
+      for (int i = 0; i < label.length(); i++) {
+        buffer.put((byte) label.charAt(i));
+      }
+    }
+    drain();
+  }
+
+  /**
+   * Starts a record, first making room for the largest one.
+   */
+  private void record(byte type) {
+    if (buffer.remaining() < MAX_RECORD_SIZE) {
+      try {
+        drain();
+      } catch (IOException e) {
+        // Kept for checkpoint() and close(), as System.out may be a server's
+        // response channel
+        if (writeError == null) {
+          writeError = e;
+        }
+        buffer.clear();
+      }
+    }
+    buffer.put(type);
+  }
+
+  private void putNumber(long value) {
+    long bits = (value << 1) ^ (value >> 63);
+    while ((bits & ~0x7FL) != 0) {
+      buffer.put((byte) (bits | 0x80));
+      bits >>>= 7;
+    }
+    buffer.put((byte) bits);
+  }
+
+  private void drain() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  public void beginCycle(int cycle) {
+    if (traceCycles) {
+      record(BEGIN_CYCLE);
+      putNumber(cycle);
+      lastInstruction = 0;
+    }
+  }
+
+  public void stage(int instructNum, int event) {
+    if (traceCycles) {
+      record((byte) (STAGE | event));
+      putNumber(instructNum - lastInstruction);
+      lastInstruction = instructNum;
+    }
+  }
+
+  public void endCycle() {
+    if (traceCycles) {
+      record(END_CYCLE);
+    }
+  }
+
+  public boolean tracesCycles() {
+    return traceCycles;
+  }
+
+  public void beginRegisters() {
+    if (traceResults) {
+      record(BEGIN_REGISTERS);
+    }
+  }
+
+  public void register(int regNum, long value) {
+    if (traceResults) {
+      record(REGISTER);
+      putNumber(regNum);
+      putNumber(value);
+    }
+  }
+
+  public void beginMemory() {
+    if (traceResults) {
+      record(BEGIN_MEMORY);
+    }
+  }
+
+  public void memory(int address, long value) {
+    if (traceResults) {
+      record(MEMORY);
+      putNumber(address);
+      putNumber(value);
+    }
+  }
+
+  public long checkpoint() throws IOException {
+    drain();
+    if (writeError != null) {
+      throw writeError;
+    }
+    return channel.position();
+  }
+
+  public void close() throws IOException {
+    try {
+      drain();
+    } finally {
+      channel.close();
+    }
+    if (writeError != null) {
+      throw writeError;
+    }
+  }
+}
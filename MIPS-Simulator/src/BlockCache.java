@@ -0,0 +1,225 @@
+import java.util.List;
+
+/**
+ * Cache of translated basic blocks for fast-forward execution, keyed by the
+ * PC of the first instruction.
+ *
+ * A block is the straight run of instructions from its PC up to and including
+ * the next branch or jump (or {@link #MAX_BLOCK_LENGTH} instructions). It is
+ * translated on first execution into a fused int[] of {@link #STRIDE} ints
+ * per instruction: an op kind that folds the register/immediate variant and
+ * the branch condition together, the ALU function from the opcode table,
+ * then three operands. Executing a block is then a single switch per
+ * instruction with no decoding. When the cache is full the least recently
+ * used block is evicted.
+ */
+public class BlockCache {
+  public static final int  MAX_BLOCK_LENGTH = 64;
+  public static final int  STRIDE           = 5;
+
+  /* Fused op kinds, each followed by the ALU function and three operands */
+  static final int         ALU_REG          = 0; // writeReg, readReg1, readReg2
+  static final int         ALU_IMM          = 1; // writeReg, readReg1, immediate
+  static final int         LOAD             = 2; // writeReg, readReg1, offset
+  static final int         STORE            = 3; // readReg2, readReg1, offset
+  static final int         BRANCH_ZERO      = 4; // readReg1, readReg2, target
+  static final int         BRANCH_NONZERO   = 5;
+  static final int         JUMP             = 6; // unused, unused, target
+
+  private List<Instruction> instructionMemory;
+  private Block[]           blocksByPC;
+  private int               capacity;
+  private int               size;
+  private Block             mostRecent;
+  private Block             leastRecent;
+  private long              hits;
+  private long              misses;
+  private long              evictions;
+
+  /**
+   * A translated basic block.
+   */
+  static class Block {
+    int   startPC;
+    int   length;       // Number of instructions
+    int[] code;
+    Block newer;
+    Block older;
+  }
+
+  public BlockCache(List<Instruction> instructionMemory, int capacity) {
+    this.instructionMemory = instructionMemory;
+    this.capacity = capacity;
+    blocksByPC = new Block[instructionMemory.size()];
+    size = 0;
+  }
+
+  /**
+   * Returns the block starting at pc, translating it if it isn't cached.
+   */
+  Block getBlock(int pc) {
+    Block block = blocksByPC[pc];
+    if (block != null) {
+      hits++;
+      if (block != mostRecent) {
+        unlink(block);
+        linkMostRecent(block);
+      }
+      return block;
+    }
+    misses++;
+    if (size == capacity) {
+      Block evicted = leastRecent;
+      unlink(evicted);
+      blocksByPC[evicted.startPC] = null;
+      size--;
+      evictions++;
+    }
+    block = translate(pc);
+    blocksByPC[pc] = block;
+    linkMostRecent(block);
+    size++;
+    return block;
+  }
+
+  private Block translate(int pc) {
+    int end = pc;
+    while (end < instructionMemory.size() && end - pc < MAX_BLOCK_LENGTH) {
+      if ((instructionMemory.get(end++).controlBits & Instruction.BRANCH) != 0) {
+        break;
+      }
+    }
+    Block block = new Block();
+    block.startPC = pc;
+    block.length = end - pc;
+    block.code = new int[block.length * STRIDE];
+    for (int i = 0; i < block.length; i++) {
+      Instruction instr = instructionMemory.get(pc + i);
+      int bits = instr.controlBits;
+      boolean regOperand = (bits & Instruction.ALU_SRC) != 0;
+      int[] code = block.code;
+      int op = i * STRIDE;
+      code[op + 1] = instr.function.aluFunction;
+      if ((bits & Instruction.MEM_READ) != 0) {
+        code[op] = LOAD;
+        code[op + 2] = instr.writeReg;
+        code[op + 3] = instr.readReg1;
+        code[op + 4] = instr.immediate;
+      } else if ((bits & Instruction.MEM_WRITE) != 0) {
+        code[op] = STORE;
+        code[op + 2] = instr.readReg2;
+        code[op + 3] = instr.readReg1;
+        code[op + 4] = instr.immediate;
+      } else if ((bits & Instruction.BRANCH) != 0) {
+        switch (instr.function.branchCondition) {
+        case Instruction.IF_ZERO:
+          code[op] = BRANCH_ZERO;
+          break;
+        case Instruction.IF_NONZERO:
+          code[op] = BRANCH_NONZERO;
+          break;
+        case Instruction.ALWAYS:
+          code[op] = JUMP;
+          break;
+        default:
+          throw new UnsupportedOperationException("Function: " + instr.function + " not supported");
+        }
+        code[op + 2] = instr.readReg1;
+        code[op + 3] = regOperand ? instr.readReg2 : 0;
+        code[op + 4] = instr.branchTarget;
+      } else if ((bits & Instruction.REG_WRITE) != 0) {
+        code[op] = regOperand ? ALU_REG : ALU_IMM;
+        code[op + 2] = instr.writeReg;
+        code[op + 3] = instr.readReg1;
+        code[op + 4] = regOperand ? instr.readReg2 : instr.immediate;
+      } else {
+        throw new UnsupportedOperationException("Function: " + instr.function + " not supported");
+      }
+    }
+    return block;
+  }
+
+  /**
+   * Executes a whole block against a machine state and returns the next PC.
+   * Branches without a second register operand compare against R0, which the
+   * ALU functions they use ignore.
+   */
+  static int execute(Block block, MachineState state) {
+    int[] code = block.code;
+    int nextPC = block.startPC + block.length;
+    for (int op = 0; op < code.length; op += STRIDE) {
+      switch (code[op]) {
+      case ALU_REG:
+        state.setRegister(code[op + 2], Instruction.alu(code[op + 1],
+            state.getRegister(code[op + 3]), state.getRegister(code[op + 4])));
+        break;
+      case ALU_IMM:
+        state.setRegister(code[op + 2],
+            Instruction.alu(code[op + 1], state.getRegister(code[op + 3]), code[op + 4]));
+        break;
+      case LOAD:
+        state.setRegister(code[op + 2],
+            state.load((int) (state.getRegister(code[op + 3]) + code[op + 4])));
+        break;
+      case STORE:
+        state.store((int) (state.getRegister(code[op + 3]) + code[op + 4]),
+            state.getRegister(code[op + 2]));
+        break;
+      case BRANCH_ZERO:
+        if (Instruction.alu(code[op + 1], state.getRegister(code[op + 2]),
+            state.getRegister(code[op + 3])) == 0) {
+          nextPC = code[op + 4];
+        }
+        break;
+      case BRANCH_NONZERO:
+        if (Instruction.alu(code[op + 1], state.getRegister(code[op + 2]),
+            state.getRegister(code[op + 3])) != 0) {
+          nextPC = code[op + 4];
+        }
+        break;
+      case JUMP:
+        nextPC = code[op + 4];
+        break;
+      }
+    }
+    return nextPC;
+  }
+
+  private void unlink(Block block) {
+    if (block.newer != null) {
+      block.newer.older = block.older;
+    } else {
+      mostRecent = block.older;
+    }
+    if (block.older != null) {
+      block.older.newer = block.newer;
+    } else {
+      leastRecent = block.newer;
+    }
+    block.newer = null;
+    block.older = null;
+  }
+
+  private void linkMostRecent(Block block) {
+    block.older = mostRecent;
+    if (mostRecent != null) {
+      mostRecent.newer = block;
+    }
+    mostRecent = block;
+    if (leastRecent == null) {
+      leastRecent = block;
+    }
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+}
@@ -0,0 +1,36 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Predicts the direction of a branch when IF1 fetches it. The prediction is
+ * only used when the {@link BranchTargetBuffer} knows the branch target;
+ * every branch is reported back with its outcome once EX resolves it.
+ */
+public interface BranchPredictor {
+  /**
+   * Returns the entry that predicts the branch at pc now. IF1 keeps it with
+   * the branch and hands it back to {@link #update(int, boolean)}, as the
+   * state it depends on may change before the branch resolves.
+   */
+  public int index(int pc);
+
+  /**
+   * Returns true if the entry from {@link #index(int)} predicts taken.
+   */
+  public boolean predict(int index);
+
+  /**
+   * Trains the entry the branch was predicted with on its outcome.
+   */
+  public void update(int index, boolean taken);
+
+  /**
+   * Describes the predictor and its configuration for reports.
+   */
+  public String getName();
+
+  public void writeTo(DataOutput out) throws IOException;
+
+  public void readFrom(DataInput in) throws IOException;
+}
@@ -0,0 +1,81 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Direct-mapped cache of the targets of taken branches, indexed by the low
+ * bits of the branch PC and tagged with the whole PC. IF1 can only redirect
+ * fetch to a predicted-taken branch's target when it hits here. Only
+ * branches are looked up, so hits and misses count fetched branches.
+ */
+public class BranchTargetBuffer {
+  private int[] tags;    // PC of the branch in each entry, -1 if empty
+  private int[] targets;
+  private int   mask;
+  private long  hits;
+  private long  misses;
+
+  public BranchTargetBuffer(int entries) {
+    if (Integer.bitCount(entries) != 1) {
+      throw new IllegalArgumentException("BTB size must be a power of two");
+    }
+    tags = new int[entries];
+    targets = new int[entries];
+    mask = entries - 1;
+    for (int i = 0; i < entries; i++) {
+      tags[i] = -1;
+    }
+  }
+
+  /**
+   * Returns the recorded target of the branch at pc, or -1 if there is none.
+   */
+  public int lookup(int pc) {
+    int index = pc & mask;
+    if (tags[index] == pc) {
+      hits++;
+      return targets[index];
+    }
+    misses++;
+    return -1;
+  }
+
+  /**
+   * Records the target of a taken branch.
+   */
+  public void update(int pc, int target) {
+    int index = pc & mask;
+    tags[index] = pc;
+    targets[index] = target;
+  }
+
+  public int getEntries() {
+    return tags.length;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeLong(hits);
+    out.writeLong(misses);
+    for (int i = 0; i < tags.length; i++) {
+      out.writeInt(tags[i]);
+      out.writeInt(targets[i]);
+    }
+  }
+
+  public void readFrom(DataInput in) throws IOException {
+    hits = in.readLong();
+    misses = in.readLong();
+    for (int i = 0; i < tags.length; i++) {
+      tags[i] = in.readInt();
+      targets[i] = in.readInt();
+    }
+  }
+}
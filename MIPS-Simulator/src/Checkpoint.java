@@ -0,0 +1,114 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Helpers for the checkpoint file written by
+ * {@link Simulator#writeCheckpoint(String)}.
+ *
+ * A checkpoint starts with {@link #MAGIC} and {@link #VERSION}, followed by
+ * the length of the trace written so far, the pipeline registers and latches,
+ * the machine state, the branch predictor and BTB, the data cache, the
+ * register scoreboard and the performance counters. The machine state is stored
+ * as the set registers, the sparse memory as address/value pairs and the
+ * modified pages of every memory image.
+ */
+public class Checkpoint {
+  public static final int MAGIC   = 0x4D434B50; // "MCKP"
+  public static final int VERSION = 7;
+
+  private Checkpoint() {
+  }
+
+  public static void writeHeader(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+  }
+
+  public static void readHeader(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a checkpoint file!");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported checkpoint version " + version);
+    }
+  }
+
+  /**
+   * Writes the registers that hold a value, the sparse memory and the
+   * modified pages of every memory image.
+   */
+  public static void writeState(MachineState machineState, DataOutput out) throws IOException {
+    int registersSet = 0;
+    for (int regNum = 0; regNum < MachineState.NUM_REGISTERS; regNum++) {
+      if (machineState.isRegisterSet(regNum)) {
+        registersSet |= 1 << regNum;
+      }
+    }
+    out.writeInt(registersSet);
+    for (int regNum = 0; regNum < MachineState.NUM_REGISTERS; regNum++) {
+      if ((registersSet & (1 << regNum)) != 0) {
+        out.writeLong(machineState.getRegister(regNum));
+      }
+    }
+    int[] addresses = machineState.getAddresses();
+    out.writeInt(addresses.length);
+    for (int address : addresses) {
+      out.writeInt(address);
+      out.writeLong(machineState.load(address));
+    }
+    MemoryImage[] images = machineState.getImages();
+    out.writeInt(images.length);
+    for (MemoryImage image : images) {
+      out.writeUTF(image.getName());
+      image.writeDirtyPages(out);
+    }
+  }
+
+  /**
+   * Restores a state written by {@link #writeState(MachineState, DataOutput)}
+   * into the freshly loaded state of the same program.
+   */
+  public static void readState(MachineState machineState, DataInput in) throws IOException {
+    int registersSet = in.readInt();
+    for (int regNum = 0; regNum < MachineState.NUM_REGISTERS; regNum++) {
+      if ((registersSet & (1 << regNum)) != 0) {
+        machineState.setRegister(regNum, in.readLong());
+      }
+    }
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      int address = in.readInt();
+      machineState.store(address, in.readLong());
+    }
+    MemoryImage[] images = machineState.getImages();
+    if (in.readInt() != images.length) {
+      throw new IOException("Checkpoint has a different number of memory images!");
+    }
+    for (MemoryImage image : images) {
+      String name = in.readUTF();
+      if (!name.equals(image.getName())) {
+        throw new IOException("Checkpoint image " + name + " doesn't match " + image.getName());
+      }
+      image.readDirtyPages(in);
+    }
+  }
+
+  /**
+   * Cuts a trace file back to the length it had when a checkpoint was taken.
+   */
+  public static void truncate(String path, long length) throws IOException {
+    if (new File(path).length() < length) {
+      throw new IOException("Trace " + path + " is shorter than the checkpoint!");
+    }
+    RandomAccessFile file = new RandomAccessFile(path, "rw");
+    try {
+      file.setLength(length);
+    } finally {
+      file.close();
+    }
+  }
+}
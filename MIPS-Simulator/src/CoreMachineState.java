@@ -0,0 +1,91 @@
+/**
+ * {@link MachineState} of one core of a {@link MulticoreSimulator}: a
+ * private register file in front of a {@link SharedMemory}.
+ *
+ * Stores don't reach shared memory straight away. They wait in a store
+ * buffer until the end of the cycle, when every core's buffer is committed in
+ * core order, so other cores see them from the next cycle on and of two
+ * stores to the same address in the same cycle the higher numbered core's
+ * wins. Loads see shared memory as it was at the start of the cycle plus the
+ * core's own buffered stores.
+ */
+public class CoreMachineState implements MachineState {
+  private long[]       registers;
+  private int          registersSet;    // Bit n is set once Rn holds a value
+  private SharedMemory memory;
+  private int[]        pendingAddresses;
+  private long[]       pendingValues;
+  private int          pendingCount;
+
+  public CoreMachineState(SharedMemory memory) {
+    registers = new long[NUM_REGISTERS];
+    registersSet = 0;
+    this.memory = memory;
+    pendingAddresses = new int[8];
+    pendingValues = new long[8];
+    pendingCount = 0;
+  }
+
+  public long getRegister(int regNum) {
+    return registers[regNum];
+  }
+
+  public void setRegister(int regNum, long value) {
+    registers[regNum] = value;
+    registersSet |= 1 << regNum;
+  }
+
+  public boolean isRegisterSet(int regNum) {
+    return (registersSet & (1 << regNum)) != 0;
+  }
+
+  public long load(int address) {
+    // The youngest buffered store wins
+    for (int i = pendingCount - 1; i >= 0; i--) {
+      if (pendingAddresses[i] == address) {
+        return pendingValues[i];
+      }
+    }
+    return memory.load(address);
+  }
+
+  public void store(int address, long value) {
+    if (pendingCount == pendingAddresses.length) {
+      int[] addresses = new int[pendingCount * 2];
+      long[] values = new long[pendingCount * 2];
+      System.arraycopy(pendingAddresses, 0, addresses, 0, pendingCount);
+      System.arraycopy(pendingValues, 0, values, 0, pendingCount);
+      pendingAddresses = addresses;
+      pendingValues = values;
+    }
+    pendingAddresses[pendingCount] = address;
+    pendingValues[pendingCount] = value;
+    pendingCount++;
+  }
+
+  /**
+   * Writes the buffered stores to the stripes of shared memory numbered
+   * first, first + step, first + 2 * step and so on, in program order. The
+   * buffer is kept until {@link #clearPending()}.
+   */
+  public void commit(int first, int step) {
+    for (int i = 0; i < pendingCount; i++) {
+      int address = pendingAddresses[i];
+      if (memory.getStripe(address) % step == first) {
+        memory.store(address, pendingValues[i]);
+      }
+    }
+  }
+
+  public void clearPending() {
+    pendingCount = 0;
+  }
+
+  public int[] getAddresses() {
+    return memory.getAddresses();
+  }
+
+  public MemoryImage[] getImages() {
+    return new MemoryImage[0];
+  }
+}
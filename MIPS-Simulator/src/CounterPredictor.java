@@ -0,0 +1,61 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Table of saturating counters indexed by the low bits of the branch PC.
+ * With 1 bit a counter remembers the last outcome; with 2 bits a branch has
+ * to go the other way twice before the prediction flips. Counters start at
+ * the weakest not-taken value.
+ */
+public class CounterPredictor implements BranchPredictor {
+  private byte[] counters;
+  private int    mask;
+  private int    bits;
+  private byte   max;       // Highest counter value
+  private byte   threshold; // Counters at or above this predict taken
+
+  public CounterPredictor(int entries, int bits) {
+    if (Integer.bitCount(entries) != 1 || bits < 1 || bits > 7) {
+      throw new IllegalArgumentException("Counter table needs a power of two size and 1-7 bits");
+    }
+    counters = new byte[entries];
+    mask = entries - 1;
+    this.bits = bits;
+    max = (byte) ((1 << bits) - 1);
+    threshold = (byte) (1 << (bits - 1));
+    for (int i = 0; i < entries; i++) {
+      counters[i] = (byte) (threshold - 1);
+    }
+  }
+
+  public int index(int pc) {
+    return pc & mask;
+  }
+
+  public boolean predict(int index) {
+    return counters[index] >= threshold;
+  }
+
+  public void update(int index, boolean taken) {
+    if (taken) {
+      if (counters[index] < max) {
+        counters[index]++;
+      }
+    } else if (counters[index] > 0) {
+      counters[index]--;
+    }
+  }
+
+  public String getName() {
+    return bits + "-bit entries " + counters.length;
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.write(counters);
+  }
+
+  public void readFrom(DataInput in) throws IOException {
+    in.readFully(counters);
+  }
+}
@@ -0,0 +1,250 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Timing model of a set-associative data cache in front of main memory.
+ *
+ * Only tags are kept; the data itself stays in the {@link MachineState}, so
+ * the cache decides how long an access takes but never what it returns.
+ * Tags, valid/dirty flags and replacement state live in flat primitive
+ * arrays indexed by set * ways + way.
+ *
+ * A write-back cache allocates on every miss and writes a dirty victim back
+ * before refilling, which can add writebackLatency cycles. A write-through
+ * cache sends every store on to memory through a write buffer: stores never
+ * stall and a store miss doesn't allocate a line.
+ */
+public class DataCache {
+  public enum Replacement {
+    LRU, PLRU
+  }
+
+  private static final byte VALID = 1;
+  private static final byte DIRTY = 2;
+
+  private int               size;
+  private int               ways;
+  private int               lineSize;
+  private int               offsetBits;
+  private int               setBits;
+  private int               setMask;
+  private int               plruLevels;
+  private Replacement       replacement;
+  private boolean           writeBack;
+  private int               missLatency;
+  private int               writebackLatency;
+  private int[]             tags;
+  private byte[]            flags;
+  private long[]            lastUsed;     // LRU: time of the last access to each line
+  private int[]             plruBits;     // PLRU: tree bits of each set
+  private long              clock;
+  private long              hits;
+  private long              misses;
+  private long              evictions;
+  private long              writebacks;
+
+  /**
+   * @param size total bytes of data
+   * @param ways lines per set
+   * @param lineSize bytes per line
+   * @param missLatency cycles added to an access that misses
+   * @param writebackLatency further cycles added when the victim is dirty
+   * @throws IllegalArgumentException unless the line size and number of sets
+   *           are powers of two, and the ways too for PLRU
+   */
+  public DataCache(int size, int ways, int lineSize, Replacement replacement, boolean writeBack,
+      int missLatency, int writebackLatency) {
+    if (ways < 1 || lineSize < 1 || size < ways * lineSize || size % (ways * lineSize) != 0) {
+      throw new IllegalArgumentException("Cache size must be a multiple of ways * line size");
+    }
+    int sets = size / (ways * lineSize);
+    if (Integer.bitCount(lineSize) != 1 || Integer.bitCount(sets) != 1) {
+      throw new IllegalArgumentException("Cache line size and set count must be powers of two");
+    }
+    if (replacement == Replacement.PLRU && (Integer.bitCount(ways) != 1 || ways > 32)) {
+      throw new IllegalArgumentException("PLRU needs a power of two number of ways up to 32");
+    }
+    if (missLatency < 0 || writebackLatency < 0) {
+      throw new IllegalArgumentException("Cache latencies can't be negative");
+    }
+    this.size = size;
+    this.ways = ways;
+    this.lineSize = lineSize;
+    offsetBits = Integer.numberOfTrailingZeros(lineSize);
+    setBits = Integer.numberOfTrailingZeros(sets);
+    setMask = sets - 1;
+    plruLevels = Integer.numberOfTrailingZeros(ways);
+    this.replacement = replacement;
+    this.writeBack = writeBack;
+    this.missLatency = missLatency;
+    this.writebackLatency = writebackLatency;
+    tags = new int[sets * ways];
+    flags = new byte[sets * ways];
+    lastUsed = new long[sets * ways];
+    plruBits = new int[sets];
+    clock = 0;
+  }
+
+  /**
+   * Looks up an address and updates the tags. Returns the cycles the access
+   * takes beyond a hit, 0 for a hit.
+   */
+  public int access(int address, boolean write) {
+    int line = address >>> offsetBits;
+    int set = line & setMask;
+    int tag = line >>> setBits;
+    int base = set * ways;
+    clock++;
+    for (int way = 0; way < ways; way++) {
+      int index = base + way;
+      if (tags[index] == tag && (flags[index] & VALID) != 0) {
+        hits++;
+        touch(set, way);
+        if (write && writeBack) {
+          flags[index] |= DIRTY;
+        }
+        return 0;
+      }
+    }
+    misses++;
+    if (write && !writeBack) {
+      return 0;
+    }
+    int way = findVictim(set);
+    int index = base + way;
+    int latency = missLatency;
+    if ((flags[index] & VALID) != 0) {
+      evictions++;
+      if ((flags[index] & DIRTY) != 0) {
+        writebacks++;
+        latency += writebackLatency;
+      }
+    }
+    tags[index] = tag;
+    flags[index] = write ? (byte) (VALID | DIRTY) : VALID;
+    touch(set, way);
+    return latency;
+  }
+
+  private void touch(int set, int way) {
+    if (replacement == Replacement.LRU) {
+      lastUsed[set * ways + way] = clock;
+    } else {
+      // Point every node on the way's path at the other half
+      int bits = plruBits[set];
+      int node = 1;
+      for (int level = plruLevels - 1; level >= 0; level--) {
+        int side = (way >>> level) & 1;
+        if (side == 0) {
+          bits |= 1 << node;
+        } else {
+          bits &= ~(1 << node);
+        }
+        node = 2 * node + side;
+      }
+      plruBits[set] = bits;
+    }
+  }
+
+  private int findVictim(int set) {
+    int base = set * ways;
+    for (int way = 0; way < ways; way++) {
+      if ((flags[base + way] & VALID) == 0) {
+        return way;
+      }
+    }
+    if (replacement == Replacement.LRU) {
+      int victim = 0;
+      for (int way = 1; way < ways; way++) {
+        if (lastUsed[base + way] < lastUsed[base + victim]) {
+          victim = way;
+        }
+      }
+      return victim;
+    } else {
+      int bits = plruBits[set];
+      int node = 1;
+      int victim = 0;
+      for (int level = 0; level < plruLevels; level++) {
+        int side = (bits >>> node) & 1;
+        victim = (victim << 1) | side;
+        node = 2 * node + side;
+      }
+      return victim;
+    }
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  public long getWritebacks() {
+    return writebacks;
+  }
+
+  public double getMissRate() {
+    long accesses = hits + misses;
+    return (accesses > 0) ? (double) misses / accesses : 0;
+  }
+
+  /**
+   * Describes the cache geometry and policies for reports.
+   */
+  public String getName() {
+    return size + " bytes " + ways + "-way " + lineSize + "-byte lines " + replacement
+        + (writeBack ? " write-back" : " write-through") + " miss latency " + missLatency
+        + " writeback latency " + writebackLatency;
+  }
+
+  public void report(PrintStream out) {
+    out.println("DATA CACHE");
+    out.println("cache " + getName());
+    out.println("hits " + hits);
+    out.println("misses " + misses);
+    out.println("miss rate " + String.format("%.2f", 100 * getMissRate()) + "%");
+    out.println("evictions " + evictions);
+    out.println("writebacks " + writebacks);
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeLong(clock);
+    out.writeLong(hits);
+    out.writeLong(misses);
+    out.writeLong(evictions);
+    out.writeLong(writebacks);
+    for (int i = 0; i < tags.length; i++) {
+      out.writeInt(tags[i]);
+      out.writeByte(flags[i]);
+      out.writeLong(lastUsed[i]);
+    }
+    for (int bits : plruBits) {
+      out.writeInt(bits);
+    }
+  }
+
+  public void readFrom(DataInput in) throws IOException {
+    clock = in.readLong();
+    hits = in.readLong();
+    misses = in.readLong();
+    evictions = in.readLong();
+    writebacks = in.readLong();
+    for (int i = 0; i < tags.length; i++) {
+      tags[i] = in.readInt();
+      flags[i] = in.readByte();
+      lastUsed[i] = in.readLong();
+    }
+    for (int set = 0; set < plruBits.length; set++) {
+      plruBits[set] = in.readInt();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs one program under many pipeline configurations in parallel and
+ * tabulates cycles, CPI and stalls per configuration.
+ *
+ * The program is parsed once into a {@link SharedProgram}, and every
+ * configuration runs on its own copy-on-write copy of the initial state
+ * without a trace. The configurations are split in halves on a
+ * {@link ForkJoinPool} until each task runs one of them, so idle workers
+ * steal the rest of a long sweep.
+ *
+ * Configurations are added one by one or as every combination of a list of
+ * axes on top of a base set of {@link PipelineConfig} properties, each axis
+ * a property and its values, such as issue.width=1,2,4.
+ */
+public class DesignSweep {
+  private SharedProgram        program;
+  private List<String>         names;
+  private List<PipelineConfig> configs;
+  private long                 cycleLimit;
+  private Result[]             results;
+
+  /**
+   * Outcome of one configuration.
+   */
+  public static class Result {
+    public String name;
+    public long   cycles;
+    public long   instructions;
+    public long   loadUseStalls;
+    public long   memoryStalls;
+    public long   branchFlushes;
+    public long   elapsedNanos;
+    public String status; // ok, timeout or the error
+
+    public double getCPI() {
+      return (instructions > 0) ? (double) cycles / instructions : 0;
+    }
+  }
+
+  public DesignSweep(SharedProgram program) {
+    this.program = program;
+    names = new ArrayList<String>();
+    configs = new ArrayList<PipelineConfig>();
+    cycleLimit = Long.MAX_VALUE;
+  }
+
+  public void add(String name, PipelineConfig config) {
+    names.add(name);
+    configs.add(config);
+  }
+
+  /**
+   * Adds a configuration for every combination of the axes, each given as
+   * key=value1,value2,... and applied on top of the base properties. The
+   * configurations are named after the base and the values they were given.
+   *
+   * @throws IllegalArgumentException if an axis or combination is invalid
+   */
+  public void addCombinations(String name, Properties base, List<String> axes) {
+    addCombinations(name, base, axes, 0);
+  }
+
+  private void addCombinations(String name, Properties properties, List<String> axes,
+      int axisNum) {
+    if (axisNum == axes.size()) {
+      try {
+        add(name, PipelineConfig.fromProperties(properties));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(name + ": " + e.getMessage());
+      }
+      return;
+    }
+    String axis = axes.get(axisNum);
+    int equals = axis.indexOf('=');
+    if (equals <= 0) {
+      throw new IllegalArgumentException("Expected key=value1,value2,...: " + axis);
+    }
+    String key = axis.substring(0, equals).trim();
+    for (String value : axis.substring(equals + 1).split(",")) {
+      Properties varied = new Properties();
+      varied.putAll(properties);
+      varied.setProperty(key, value.trim());
+      addCombinations(name + " " + key + "=" + value.trim(), varied, axes, axisNum + 1);
+    }
+  }
+
+  public int size() {
+    return configs.size();
+  }
+
+  /**
+   * Stops each configuration after limit cycles; its status is timeout.
+   */
+  public void setCycleLimit(long limit) {
+    cycleLimit = limit;
+  }
+
+  /**
+   * Runs every configuration on up to threads workers and returns the
+   * results in the order the configurations were added.
+   */
+  public Result[] run(int threads) {
+    results = new Result[configs.size()];
+    if (results.length > 0) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        pool.invoke(new SweepTask(this, 0, results.length));
+      } finally {
+        pool.shutdown();
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Runs the configurations from first up to but not including last.
+   */
+  private static class SweepTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private DesignSweep sweep;
+    private int         first;
+    private int         last;
+
+    SweepTask(DesignSweep sweep, int first, int last) {
+      this.sweep = sweep;
+      this.first = first;
+      this.last = last;
+    }
+
+    protected void compute() {
+      if (last - first == 1) {
+        sweep.results[first] = sweep.runOne(first);
+      } else {
+        int middle = (first + last) >>> 1;
+        invokeAll(new SweepTask(sweep, first, middle), new SweepTask(sweep, middle, last));
+      }
+    }
+  }
+
+  private Result runOne(int configNum) {
+    Result result = new Result();
+    result.name = names.get(configNum);
+    long start = System.nanoTime();
+    try {
+      Simulator sim = new Simulator(program.getInstructionMemory(), program.newMachineState(),
+          0, new NullTrace(), configs.get(configNum));
+      sim.setCycleLimit(cycleLimit);
+      sim.runSimulation();
+      PerformanceCounters counters = sim.getCounters();
+      result.cycles = counters.cycles;
+      result.instructions = counters.instructionsRetired;
+      result.loadUseStalls = counters.loadUseStalls;
+      result.memoryStalls = counters.memoryStalls;
+      result.branchFlushes = counters.branchFlushes;
+      result.status = sim.isFinished() ? "ok" : "timeout";
+    } catch (RuntimeException e) {
+      result.status = e.toString();
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * Writes the results as CSV with a header line.
+   */
+  public static void writeCsv(Result[] results, PrintStream out) {
+    out.println("config,cycles,instructions,cpi,load_use_stalls,memory_stalls,branch_flushes,"
+        + "ms,status");
+    for (Result result : results) {
+      out.println(csvField(result.name) + "," + result.cycles + "," + result.instructions
+          + "," + String.format(Locale.ROOT, "%.4f", result.getCPI()) + ","
+          + result.loadUseStalls + "," + result.memoryStalls + "," + result.branchFlushes + ","
+          + String.format(Locale.ROOT, "%.1f", result.elapsedNanos / 1e6) + ","
+          + csvField(result.status));
+    }
+  }
+
+  /**
+   * Writes the results as a JSON array with one object per configuration.
+   */
+  public static void writeJson(Result[] results, PrintStream out) {
+    out.println("[");
+    for (int i = 0; i < results.length; i++) {
+      Result result = results[i];
+      out.println("  {\"config\": " + jsonString(result.name) + ", \"cycles\": " + result.cycles
+          + ", \"instructions\": " + result.instructions + ", \"cpi\": "
+          + String.format(Locale.ROOT, "%.4f", result.getCPI()) + ", \"load_use_stalls\": "
+          + result.loadUseStalls + ", \"memory_stalls\": " + result.memoryStalls
+          + ", \"branch_flushes\": " + result.branchFlushes + ", \"ms\": "
+          + String.format(Locale.ROOT, "%.1f", result.elapsedNanos / 1e6) + ", \"status\": "
+          + jsonString(result.status) + "}" + ((i + 1 < results.length) ? "," : ""));
+    }
+    out.println("]");
+  }
+
+  private static String csvField(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+      return value;
+    }
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+
+  private static String jsonString(String value) {
+    StringBuilder builder = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        builder.append('\\').append(c);
+      } else if (c < ' ') {
+        builder.append(String.format("\\u%04x", (int) c));
+      } else {
+        builder.append(c);
+      }
+    }
+    return builder.append('"').toString();
+  }
+}
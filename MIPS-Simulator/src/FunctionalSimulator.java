@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Executes a program one instruction at a time without modelling the
+ * pipeline. Produces the same final registers and memory as
+ * {@link Simulator#runSimulation()} but no per-cycle trace.
+ *
+ * Whole runs go through a {@link BlockCache} of translated basic blocks.
+ * {@link #fastForward(long, int)} stops at a given instruction count or PC so
+ * the state can be handed to a {@link Simulator} for detailed simulation of a
+ * region of interest.
+ */
+public class FunctionalSimulator {
+  public static final int   BLOCK_CACHE_SIZE = 4096;
+
+  private MachineState      machineState;
+  private List<Instruction> instructionMemory;
+  private int               pc;
+  private long              instructionsExecuted;
+  private BlockCache        blockCache;
+
+  public FunctionalSimulator(List<Instruction> instructionMemory, MachineState machineState) {
+    this.instructionMemory = instructionMemory;
+    this.machineState = machineState;
+    pc = 0;
+    instructionsExecuted = 0;
+    blockCache = new BlockCache(instructionMemory, BLOCK_CACHE_SIZE);
+  }
+
+  public FunctionalSimulator(String inputPath) throws IOException {
+    InputParser parser = new InputParser(inputPath);
+    parser.parseFile();
+    instructionMemory = parser.getInstructionMemory();
+    machineState = parser.getMachineState();
+    pc = 0;
+    instructionsExecuted = 0;
+    blockCache = new BlockCache(instructionMemory, BLOCK_CACHE_SIZE);
+  }
+
+  /**
+   * Executes the instruction at the program counter.
+   */
+  public void step() {
+    Instruction instr = instructionMemory.get(pc);
+    int bits = instr.controlBits;
+    long operand1 = machineState.getRegister(instr.readReg1);
+    long operand2;
+    if ((bits & Instruction.ALU_SRC) != 0) {
+      operand2 = machineState.getRegister(instr.readReg2);
+    } else {
+      operand2 = instr.immediate;
+    }
+    long result = Instruction.alu(instr.function.aluFunction, operand1, operand2);
+    int nextPC = pc + 1;
+    if ((bits & Instruction.MEM_READ) != 0) {
+      machineState.setRegister(instr.writeReg, machineState.load((int) result));
+    } else if ((bits & Instruction.MEM_WRITE) != 0) {
+      machineState.store((int) result, machineState.getRegister(instr.readReg2));
+    } else if ((bits & Instruction.BRANCH) != 0) {
+      if (Instruction.isTaken(instr.function.branchCondition, result == 0)) {
+        nextPC = instr.branchTarget;
+      }
+    } else if ((bits & Instruction.REG_WRITE) != 0) {
+      machineState.setRegister(instr.writeReg, result);
+    }
+    pc = nextPC;
+    instructionsExecuted++;
+  }
+
+  /**
+   * Runs until the program counter leaves instruction memory.
+   */
+  public void run() {
+    fastForward(Long.MAX_VALUE, -1);
+  }
+
+  /**
+   * Executes until the PC reaches stopPC, maxInstructions in total have been
+   * executed or the program ends. Whole blocks run from the block cache;
+   * single steps are used where a block would overshoot the limit.
+   * A stopPC of -1 means no stop PC.
+   */
+  public void fastForward(long maxInstructions, int stopPC) {
+    int size = instructionMemory.size();
+    while (pc >= 0 && pc < size && pc != stopPC && instructionsExecuted < maxInstructions) {
+      BlockCache.Block block = blockCache.getBlock(pc);
+      boolean stopInBlock = stopPC > pc && stopPC < pc + block.length;
+      if (!stopInBlock && instructionsExecuted + block.length <= maxInstructions) {
+        pc = BlockCache.execute(block, machineState);
+        instructionsExecuted += block.length;
+      } else {
+        step();
+      }
+    }
+  }
+
+  public BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  public List<Instruction> getInstructionMemory() {
+    return instructionMemory;
+  }
+
+  public int getPC() {
+    return pc;
+  }
+
+  public long getInstructionsExecuted() {
+    return instructionsExecuted;
+  }
+
+  /**
+   * Continues from a PC reached by another model of the same program, such as
+   * a drained {@link Simulator} that retired instructions on this state.
+   */
+  public void continueFrom(int pc, long instructionsRetired) {
+    this.pc = pc;
+    instructionsExecuted += instructionsRetired;
+  }
+
+  public MachineState getMachineState() {
+    return machineState;
+  }
+
+  /**
+   * Writes the final registers and memory in the same format as
+   * {@link Simulator#printResults()} and closes the trace.
+   */
+  public void printResults(Trace trace) throws IOException {
+    try {
+      Simulator.printResults(machineState, trace);
+    } finally {
+      trace.close();
+    }
+  }
+
+  /**
+   * Returns true if both states hold the same registers and memory.
+   */
+  public static boolean sameState(MachineState a, MachineState b) {
+    for (int regNum = 0; regNum < MachineState.NUM_REGISTERS; regNum++) {
+      if (a.isRegisterSet(regNum) != b.isRegisterSet(regNum)
+          || a.getRegister(regNum) != b.getRegister(regNum)) {
+        return false;
+      }
+    }
+    int[] addressesA = a.getAddresses();
+    int[] addressesB = b.getAddresses();
+    if (addressesA.length != addressesB.length) {
+      return false;
+    }
+    for (int i = 0; i < addressesA.length; i++) {
+      if (addressesA[i] != addressesB[i] || a.load(addressesA[i]) != b.load(addressesB[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
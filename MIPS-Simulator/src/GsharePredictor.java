@@ -0,0 +1,68 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Two-bit counters indexed by the branch PC XORed with a global history of
+ * recent branch outcomes, so a branch can be predicted differently depending
+ * on the path that led to it.
+ *
+ * The history is shifted when a branch resolves in EX, so a branch fetched
+ * behind an unresolved one is predicted without its outcome. Each branch is
+ * trained at the entry it was predicted with, whatever the history is by
+ * the time it resolves.
+ */
+public class GsharePredictor implements BranchPredictor {
+  private byte[] counters;
+  private int    mask;
+  private int    historyBits;
+  private int    historyMask;
+  private int    history;
+
+  public GsharePredictor(int entries, int historyBits) {
+    if (Integer.bitCount(entries) != 1 || historyBits < 0 || historyBits > 30) {
+      throw new IllegalArgumentException("gshare needs a power of two size and 0-30 history bits");
+    }
+    counters = new byte[entries];
+    mask = entries - 1;
+    this.historyBits = historyBits;
+    historyMask = (1 << historyBits) - 1;
+    history = 0;
+    for (int i = 0; i < entries; i++) {
+      counters[i] = 1;
+    }
+  }
+
+  public int index(int pc) {
+    return (pc ^ history) & mask;
+  }
+
+  public boolean predict(int index) {
+    return counters[index] >= 2;
+  }
+
+  public void update(int index, boolean taken) {
+    if (taken) {
+      if (counters[index] < 3) {
+        counters[index]++;
+      }
+    } else if (counters[index] > 0) {
+      counters[index]--;
+    }
+    history = ((history << 1) | (taken ? 1 : 0)) & historyMask;
+  }
+
+  public String getName() {
+    return "gshare entries " + counters.length + " history " + historyBits;
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(history);
+    out.write(counters);
+  }
+
+  public void readFrom(DataInput in) throws IOException {
+    history = in.readInt();
+    in.readFully(counters);
+  }
+}
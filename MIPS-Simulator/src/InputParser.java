@@ -1,120 +1,590 @@
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Reads an input file in a single pass:
+ *
+ * <pre>
+ * REGISTERS
+ * R1 16
+ * MEMORY
+ * 8 40
+ * IMAGE data.bin 4096
+ * CODE
+ *       LD R2, 0(R1)
+ * NEXT: DADD R1, R1, #8
+ *       BNEZ R1, NEXT
+ * </pre>
+ *
+ * The tokenizer works on a char buffer without regular expressions or
+ * per-line strings. Branches to labels that haven't been seen yet are
+ * recorded in a fixup table and patched once the whole file is read. Errors
+ * are reported as IOExceptions carrying the line number.
+ *
+ * Register and memory values are 64 bits; addresses, offsets and
+ * immediates 32 bits.
+ *
+ * An IMAGE line maps a binary {@link MemoryImage} at a base address. The path
+ * is relative to the input file. Memory values listed after the IMAGE line
+ * are written into the image; values listed before it inside its range are
+ * hidden by it.
+ */
 public class InputParser {
-  private static Logger          logger = Logger.getLogger(InputParser.class.getName());
-  private BufferedReader         reader;
-  private Map<Integer, Integer> registerFile;
-  private Map<Integer, Integer>  mainMemory;
+  private static Logger          logger     = Logger.getLogger(InputParser.class.getName());
+  private static final Instruction.Opcode[] OPCODES = Instruction.Opcode.values();
+  private static final int       EOF        = -1;
+
+  private Reader                 reader;
+  private File                   inputDir;
+  private char[]                 buffer;
+  private int                    bufferPos;
+  private int                    bufferLimit;
+  private int                    lineNum;
+  private char[]                 word;
+  private int                    wordLength;
+  private ArrayMachineState      machineState;
   private Map<String, Integer>   targetMap;
   private List<Instruction>      instructionMemory;
-  private List<String>           instructionList;
-  private int                    numInstructions;
+  /* Branches waiting for their label to be defined */
+  private int[]                  fixupInstructions;
+  private int[]                  fixupLines;
+  private int                    numFixups;
 
-  public InputParser(String inputPath) {
+  public InputParser(String inputPath) throws FileNotFoundException {
     try {
-      reader = new BufferedReader(new FileReader(inputPath));
+      reader = new FileReader(inputPath);
     } catch (FileNotFoundException e) {
       logger.log(Level.SEVERE, "Couldn't open file: " + inputPath);
-      System.exit(1);
+      throw e;
     }
-    registerFile = new HashMap<Integer, Integer>();
-    mainMemory = new TreeMap<Integer, Integer>();
+    inputDir = new File(inputPath).getAbsoluteFile().getParentFile();
+    buffer = new char[8192];
+    bufferPos = 0;
+    bufferLimit = 0;
+    lineNum = 1;
+    word = new char[64];
+    machineState = new ArrayMachineState();
     targetMap = new HashMap<String, Integer>();
     instructionMemory = new ArrayList<Instruction>();
-    instructionList = new ArrayList<String>();
-    numInstructions = 0;
+    fixupInstructions = new int[16];
+    fixupLines = new int[16];
+    numFixups = 0;
   }
 
   public void parseFile() throws IOException {
-    String line = reader.readLine();
-    if (!line.contains("REGISTERS")) {
+    try {
+      parseSections();
+    } finally {
+      reader.close();
+    }
+    resolveFixups();
+  }
+
+  private void parseSections() throws IOException {
+    if (!skipBlankLines() || !isLetter(peek()) || !readWordHeader("REGISTERS")) {
       logger.log(Level.SEVERE, "File has no REGISTER section.");
-      throw new IOException("No register section!");
-    } else {
-      line = reader.readLine();
+      throw error("No register section!");
     }
     // Load all initial register values
-    while (!line.contains("MEMORY")) {
-      loadRegisterValue(line);
-      line = reader.readLine();
+    boolean foundSection = false;
+    while (!foundSection && skipBlankLines()) {
+      readWord();
+      foundSection = readHeader("MEMORY");
+      if (!foundSection) {
+        loadRegisterValue();
+      }
     }
-    if (!line.contains("MEMORY")) {
+    if (!foundSection) {
       logger.log(Level.SEVERE, "File has no MEMORY section.");
-      throw new IOException("No memory section!");
-    } else {
-      line = reader.readLine();
+      throw error("No memory section!");
     }
     // Load all initial memory values
-    while (!line.contains("CODE")) {
-      loadMemoryValue(line);
-      line = reader.readLine();
+    foundSection = false;
+    while (!foundSection && skipBlankLines()) {
+      if (isLetter(peek())) {
+        readWord();
+        if (wordEquals("IMAGE")) {
+          loadMemoryImage();
+          continue;
+        }
+        foundSection = readHeader("CODE");
+        if (!foundSection) {
+          throw error("Expected CODE but found " + new String(word, 0, wordLength));
+        }
+      } else {
+        loadMemoryValue();
+      }
     }
-    if (!line.contains("CODE")) {
+    if (!foundSection) {
       logger.log(Level.SEVERE, "File has no CODE section.");
-      throw new IOException("No code section!");
+      throw error("No code section!");
     }
     // Process all instructions
-    while ((line = reader.readLine()) != null) {
-      loadInstruction(line);
+    while (skipBlankLines()) {
+      loadInstruction();
     }
-    convertJumpTargets();
   }
 
-  private void convertJumpTargets() {
-    for (int i=0; i < instructionList.size(); i++) {
-      Instruction instr = new Instruction(instructionList.get(i), i, targetMap);
-      instructionMemory.add(instr);
+  /**
+   * Reads "R<n> <value>" once the first word has been read.
+   */
+  private void loadRegisterValue() throws IOException {
+    int registerNumber = 0;
+    if (word[0] != 'R' || wordLength == 1) {
+      throw error("Expected a register");
+    }
+    for (int i = 1; i < wordLength; i++) {
+      int digit = digitValue(word[i], 10);
+      if (digit < 0) {
+        throw error("Expected a register");
+      }
+      registerNumber = registerNumber * 10 + digit;
+      if (registerNumber >= MachineState.NUM_REGISTERS) {
+        throw error("Invalid register: " + new String(word, 0, wordLength));
+      }
     }
+    long value = readLong();
+    endLine();
+    machineState.setRegister(registerNumber, value);
   }
 
-  private void loadRegisterValue(String line) {
-    String[] tokens = line.split(" ");
-    int registerNumber = Integer.parseInt(tokens[0].substring(1));
-    int value = Integer.parseInt(tokens[1]);
-    registerFile.put(registerNumber, value);
+  /**
+   * Reads "<address> <value>".
+   */
+  private void loadMemoryValue() throws IOException {
+    int address = readInt();
+    long value = readLong();
+    endLine();
+    machineState.store(address, value);
   }
 
-  private void loadMemoryValue(String line) {
-    String[] tokens = line.split(" ");
-    int address = Integer.parseInt(tokens[0]);
-    int value = Integer.parseInt(tokens[1]);
-    mainMemory.put(address, value);
+  /**
+   * Reads "IMAGE <path> <base address>" once IMAGE has been read.
+   */
+  private void loadMemoryImage() throws IOException {
+    File file = new File(readPath());
+    if (!file.isAbsolute()) {
+      file = new File(inputDir, file.getPath());
+    }
+    int base = readInt();
+    endLine();
+    try {
+      machineState.mapImage(new MemoryImage(file.getPath(), base));
+    } catch (IOException e) {
+      throw error("Couldn't map memory image: " + e.getMessage());
+    }
   }
 
-  private void loadInstruction(String line) {
-    // Get label and trim until OPCODE
+  /**
+   * Reads "[label:] OPCODE operands".
+   */
+  private void loadInstruction() throws IOException {
+    int instructionNum = instructionMemory.size();
     String label = null;
-    int colonLoc = line.indexOf(":");
-    if (colonLoc > -1) {
-      label = line.substring(0, colonLoc);
-      line = line.substring(colonLoc + 2, line.length());
-    } else {
-      line = line.trim();
+    readWord();
+    skipSpaces();
+    if (peek() == ':') {
+      next();
+      label = new String(word, 0, wordLength);
+      if (targetMap.put(label, instructionNum) != null) {
+        throw error("Label " + label + " defined twice");
+      }
+      readWord();
+    }
+    Instruction.Opcode function = lookupOpcode();
+    Instruction instr;
+    switch (function.format) {
+    case ALU: {
+      int rd = readRegister();
+      expect(',');
+      int rs = readRegister();
+      expect(',');
+      skipSpaces();
+      if (peek() == '#') {
+        next();
+        instr = Instruction.aluImmediate(function, rd, rs, readInt());
+      } else {
+        instr = Instruction.alu(function, rd, rs, readRegister());
+      }
+      break;
+    }
+    case IMMEDIATE: {
+      int rd = readRegister();
+      expect(',');
+      int rs = readRegister();
+      expect(',');
+      skipSpaces();
+      if (peek() == '#') {
+        next();
+      }
+      instr = Instruction.aluImmediate(function, rd, rs, readInt());
+      break;
+    }
+    case MEMORY: {
+      int rt = readRegister();
+      expect(',');
+      int offset = readInt();
+      expect('(');
+      int rs = readRegister();
+      expect(')');
+      instr = Instruction.memory(function, rt, offset, rs);
+      break;
     }
-    
-    if (label != null) {
-      targetMap.put(label, numInstructions);
+    case BRANCH_ZERO: {
+      int rs = readRegister();
+      expect(',');
+      instr = Instruction.branch(function, rs, readTargetLabel());
+      break;
+    }
+    case BRANCH: {
+      int rs = readRegister();
+      expect(',');
+      int rt = readRegister();
+      expect(',');
+      instr = Instruction.branchCompare(function, rs, rt, readTargetLabel());
+      break;
+    }
+    case JUMP:
+      instr = Instruction.jump(function, readTargetLabel());
+      break;
+    default:
+      throw error("Opcode " + function + " not supported");
+    }
+    if (instr.targetLabel != null) {
+      Integer target = targetMap.get(instr.targetLabel);
+      if (target != null) {
+        instr.setBranchTarget(instructionNum, target);
+      } else {
+        addFixup(instructionNum);
+      }
+    }
+    instr.label = label;
+    endLine();
+    instructionMemory.add(instr);
+  }
+
+  private String readTargetLabel() throws IOException {
+    readWord();
+    return new String(word, 0, wordLength);
+  }
+
+  private void addFixup(int instructionNum) {
+    if (numFixups == fixupInstructions.length) {
+      int[] instructions = new int[numFixups * 2];
+      int[] lines = new int[numFixups * 2];
+      System.arraycopy(fixupInstructions, 0, instructions, 0, numFixups);
+      System.arraycopy(fixupLines, 0, lines, 0, numFixups);
+      fixupInstructions = instructions;
+      fixupLines = lines;
+    }
+    fixupInstructions[numFixups] = instructionNum;
+    fixupLines[numFixups] = lineNum;
+    numFixups++;
+  }
+
+  /**
+   * Patches the targets of forward branches.
+   */
+  private void resolveFixups() throws IOException {
+    for (int i = 0; i < numFixups; i++) {
+      Instruction instr = instructionMemory.get(fixupInstructions[i]);
+      Integer target = targetMap.get(instr.targetLabel);
+      if (target == null) {
+        throw new IOException("Line " + fixupLines[i] + ": undefined label " + instr.targetLabel);
+      }
+      instr.setBranchTarget(fixupInstructions[i], target);
+    }
+  }
+
+  private Instruction.Opcode lookupOpcode() throws IOException {
+    for (Instruction.Opcode opcode : OPCODES) {
+      if (wordEquals(opcode.name())) {
+        return opcode;
+      }
+    }
+    throw error("Unknown opcode " + new String(word, 0, wordLength));
+  }
+
+  /* Tokenizer */
+
+  private int peek() throws IOException {
+    if (bufferPos == bufferLimit) {
+      bufferLimit = reader.read(buffer, 0, buffer.length);
+      bufferPos = 0;
+      if (bufferLimit <= 0) {
+        bufferLimit = 0;
+        return EOF;
+      }
+    }
+    return buffer[bufferPos];
+  }
+
+  private int next() throws IOException {
+    int c = peek();
+    if (c != EOF) {
+      bufferPos++;
+    }
+    return c;
+  }
+
+  private void skipSpaces() throws IOException {
+    int c = peek();
+    while (c == ' ' || c == '\t' || c == '\r') {
+      bufferPos++;
+      c = peek();
+    }
+  }
+
+  /**
+   * Skips empty lines. Returns false at end of file.
+   */
+  private boolean skipBlankLines() throws IOException {
+    skipSpaces();
+    while (peek() == '\n') {
+      next();
+      lineNum++;
+      skipSpaces();
+    }
+    return peek() != EOF;
+  }
+
+  /**
+   * Consumes the end of the current line, which must hold nothing else.
+   */
+  private void endLine() throws IOException {
+    skipSpaces();
+    int c = next();
+    if (c == '\n') {
+      lineNum++;
+    } else if (c != EOF) {
+      throw error("Unexpected '" + (char) c + "'");
+    }
+  }
+
+  private void expect(char expected) throws IOException {
+    skipSpaces();
+    int c = next();
+    if (c != expected) {
+      throw error("Expected '" + expected + "'"
+          + ((c == EOF || c == '\n') ? " before end of line" : " but found '" + (char) c + "'"));
+    }
+  }
+
+  private static boolean isWordChar(int c) {
+    return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+        || c == '_' || c == '.';
+  }
+
+  /**
+   * Reads a word of letters, digits, '_' and '.' into the word buffer.
+   */
+  private void readWord() throws IOException {
+    skipSpaces();
+    wordLength = 0;
+    int c = peek();
+    while (isWordChar(c)) {
+      if (wordLength == word.length) {
+        char[] longer = new char[word.length * 2];
+        System.arraycopy(word, 0, longer, 0, wordLength);
+        word = longer;
+      }
+      word[wordLength++] = (char) c;
+      bufferPos++;
+      c = peek();
+    }
+    if (wordLength == 0) {
+      throw error((c == EOF || c == '\n') ? "Unexpected end of line"
+          : "Unexpected '" + (char) c + "'");
+    }
+  }
+
+  /**
+   * Reads everything up to the next whitespace.
+   */
+  private String readPath() throws IOException {
+    skipSpaces();
+    StringBuilder path = new StringBuilder();
+    int c = peek();
+    while (c != EOF && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+      path.append((char) next());
+      c = peek();
+    }
+    if (path.length() == 0) {
+      throw error("Expected a path");
+    }
+    return path.toString();
+  }
+
+  private boolean wordEquals(String str) {
+    if (wordLength != str.length()) {
+      return false;
+    }
+    for (int i = 0; i < wordLength; i++) {
+      if (word[i] != str.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean readWordHeader(String header) throws IOException {
+    readWord();
+    return readHeader(header);
+  }
+
+  /**
+   * Returns true and consumes the rest of the line if the word just read is
+   * the given section header.
+   */
+  private boolean readHeader(String header) throws IOException {
+    if (!wordEquals(header)) {
+      return false;
+    }
+    endLine();
+    return true;
+  }
+
+  private static boolean isLetter(int c) {
+    return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+  }
+
+  /**
+   * Reads "R<n>" with n in range of the register file.
+   */
+  private int readRegister() throws IOException {
+    skipSpaces();
+    if (next() != 'R') {
+      throw error("Expected a register");
+    }
+    int regNum = readUnsigned(10);
+    if (regNum >= MachineState.NUM_REGISTERS) {
+      throw error("Invalid register: R" + regNum);
+    }
+    return regNum;
+  }
+
+  /**
+   * Reads a signed decimal or 0x prefixed hexadecimal int.
+   */
+  private int readInt() throws IOException {
+    skipSpaces();
+    boolean negative = false;
+    if (peek() == '-' || peek() == '+') {
+      negative = next() == '-';
+    }
+    int radix = 10;
+    if (peek() == '0') {
+      next();
+      if (peek() == 'x' || peek() == 'X') {
+        next();
+        radix = 16;
+      } else if (digitValue(peek(), 10) < 0) {
+        return 0;
+      }
+    }
+    long value = readUnsigned(radix);
+    return (int) (negative ? -value : value);
+  }
+
+  /**
+   * Reads a signed decimal or 0x prefixed hexadecimal value of up to 64
+   * bits.
+   */
+  private long readLong() throws IOException {
+    skipSpaces();
+    boolean negative = false;
+    if (peek() == '-' || peek() == '+') {
+      negative = next() == '-';
+    }
+    int radix = 10;
+    if (peek() == '0') {
+      next();
+      if (peek() == 'x' || peek() == 'X') {
+        next();
+        radix = 16;
+      } else if (digitValue(peek(), 10) < 0) {
+        return 0;
+      }
+    }
+    int c = peek();
+    if (digitValue(c, radix) < 0) {
+      throw error("Expected a number");
+    }
+    long value = 0;
+    int digits = 0;
+    int digit;
+    while ((digit = digitValue(c, radix)) >= 0) {
+      if (radix == 16) {
+        if (++digits > 16) {
+          throw error("Number out of range");
+        }
+        value = (value << 4) | digit;
+      } else {
+        // Accumulate negated so Long.MIN_VALUE fits
+        if (value < (Long.MIN_VALUE + digit) / 10) {
+          throw error("Number out of range");
+        }
+        value = value * 10 - digit;
+      }
+      bufferPos++;
+      c = peek();
+    }
+    if (radix == 10) {
+      if (!negative && value == Long.MIN_VALUE) {
+        throw error("Number out of range");
+      }
+      return negative ? value : -value;
+    }
+    return negative ? -value : value;
+  }
+
+  private int readUnsigned(int radix) throws IOException {
+    int c = peek();
+    if (digitValue(c, radix) < 0) {
+      throw error("Expected a number");
+    }
+    long value = 0;
+    int digit;
+    while ((digit = digitValue(c, radix)) >= 0) {
+      value = value * radix + digit;
+      if (value > 0xFFFFFFFFL) {
+        throw error("Number out of range");
+      }
+      bufferPos++;
+      c = peek();
+    }
+    if (radix == 10 && value > Integer.MAX_VALUE + 1L) {
+      throw error("Number out of range");
+    }
+    return (int) value;
+  }
+
+  private static int digitValue(int c, int radix) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (radix == 16 && c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    } else if (radix == 16 && c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
     }
-    instructionList.add(line);
-    numInstructions++;
+    return -1;
   }
 
-  public Map<Integer, Integer> getRegisterFile() {
-    return registerFile;
+  private IOException error(String message) {
+    return new IOException("Line " + lineNum + ": " + message);
   }
 
-  public Map<Integer, Integer> getMainMemory() {
-    return mainMemory;
+  public MachineState getMachineState() {
+    return machineState;
   }
 
   public List<Instruction> getInstructionMemory() {
@@ -1,55 +1,264 @@
-import java.util.Map;
-
+/**
+ * A decoded instruction. {@link InputParser} builds these once at load time
+ * with the register indices, immediate, branch target and control signals
+ * already worked out, so the pipeline only copies fields.
+ *
+ * Everything the simulators need to know about an opcode is in its row of
+ * the {@link Opcode} table: the operand syntax, the control signals, the ALU
+ * function and, for branches, the condition on the ALU result. Adding an
+ * opcode takes one row. Values are 64 bits wide; addresses are the low 32
+ * bits of the ALU result.
+ */
 public class Instruction {
   public Opcode function;
-  public String rs;
-  public String rt;
-  public String rd;
-  public String shamt;
-  public Integer immediate;
-  public Integer target;
+  public int    readReg1;
+  public int    readReg2;
+  public int    writeReg;
+  public int    immediate;
+  public int    branchTarget; // Instruction index of a branch target
+  public int    controlBits;
+  public String label;        // Label defined on this instruction, or null
+  public String targetLabel;  // Label a branch jumps to, or null
+
+  /* Control signal bits */
+  public static final int REG_DST    = 1 << 0; // Destination register is rt
+  public static final int REG_WRITE  = 1 << 1;
+  public static final int ALU_SRC    = 1 << 2; // Operand 2 is read2, not the immediate
+  public static final int MEM_READ   = 1 << 3;
+  public static final int MEM_WRITE  = 1 << 4;
+  public static final int MEM_TO_REG = 1 << 5; // Write back memData, not aluResult
+  public static final int BRANCH     = 1 << 6;
+  public static final int GET_DATA1  = 1 << 7; // Operand 1 read from a register
+  public static final int GET_DATA2  = 1 << 8; // Operand 2 read from a register
+
+  /* ALU functions */
+  public static final int ALU_ADD    = 0;
+  public static final int ALU_SUB    = 1;
+  public static final int ALU_AND    = 2;
+  public static final int ALU_OR     = 3;
+  public static final int ALU_XOR    = 4;
+  public static final int ALU_SLL    = 5; // Shift amounts are the low 6 bits of operand 2
+  public static final int ALU_SRL    = 6;
+  public static final int ALU_SRA    = 7;
+  public static final int ALU_SLT    = 8;
+  public static final int ALU_PASS   = 9; // Result is operand 1
+
+  /* Branch conditions on the ALU result */
+  public static final int NEVER      = 0;
+  public static final int IF_ZERO    = 1;
+  public static final int IF_NONZERO = 2;
+  public static final int ALWAYS     = 3;
+
+  /**
+   * Operand syntax of an opcode.
+   */
+  public enum Format {
+    ALU,         // rd, rs, rt or rd, rs, #immediate
+    IMMEDIATE,   // rd, rs, #immediate
+    MEMORY,      // rt, offset(rs)
+    BRANCH_ZERO, // rs, label
+    BRANCH,      // rs, rt, label
+    JUMP         // label
+  }
 
   public enum Opcode {
-    DADD, SUB, LD, SD, BNEZ
-  }
-  
-  public Instruction(String str, int instructionNum, Map<String, Integer> targetMap) {
-    target = null;
-    shamt = null;
-    String[] tokens = str.split("\\s*(,|\\s)\\s*");
-    String opStr = tokens[0];
-    // Parse Opcode
-    if (opStr.equals("DADD")) {
-      function = Opcode.DADD;
-    } else if (opStr.equals("SUB")) {
-      function = Opcode.SUB;
-    } else if (opStr.equals("LD")) {
-      function = Opcode.LD;
-    } else if (opStr.equals("SD")) {
-      function = Opcode.SD;
-    } else if (opStr.equals("BNEZ")) {
-      function = Opcode.BNEZ;
+    //    format              control bits                                 ALU       branch
+    DADD (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_ADD,  NEVER),
+    SUB  (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_SUB,  NEVER),
+    LD   (Format.MEMORY,      REG_DST | REG_WRITE | MEM_READ | MEM_TO_REG, ALU_ADD,  NEVER),
+    SD   (Format.MEMORY,      MEM_WRITE,                                   ALU_ADD,  NEVER),
+    BNEZ (Format.BRANCH_ZERO, BRANCH,                                      ALU_PASS, IF_NONZERO),
+    DADDI(Format.IMMEDIATE,   REG_WRITE,                                   ALU_ADD,  NEVER),
+    DSUB (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_SUB,  NEVER),
+    AND  (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_AND,  NEVER),
+    OR   (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_OR,   NEVER),
+    XOR  (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_XOR,  NEVER),
+    DSLL (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_SLL,  NEVER),
+    DSRL (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_SRL,  NEVER),
+    DSRA (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_SRA,  NEVER),
+    SLT  (Format.ALU,         REG_WRITE | ALU_SRC,                         ALU_SLT,  NEVER),
+    BEQZ (Format.BRANCH_ZERO, BRANCH,                                      ALU_PASS, IF_ZERO),
+    BEQ  (Format.BRANCH,      BRANCH | ALU_SRC,                            ALU_SUB,  IF_ZERO),
+    BNE  (Format.BRANCH,      BRANCH | ALU_SRC,                            ALU_SUB,  IF_NONZERO),
+    J    (Format.JUMP,        BRANCH,                                      ALU_PASS, ALWAYS);
+
+    public final Format format;
+    public final int    controlBits;
+    public final int    aluFunction;
+    public final int    branchCondition;
+
+    private Opcode(Format format, int controlBits, int aluFunction, int branchCondition) {
+      this.format = format;
+      this.controlBits = controlBits;
+      this.aluFunction = aluFunction;
+      this.branchCondition = branchCondition;
+    }
+  }
+
+  private Instruction(Opcode function) {
+    this.function = function;
+    controlBits = function.controlBits;
+  }
+
+  /**
+   * ALU rd, rs, rt
+   */
+  public static Instruction alu(Opcode function, int rd, int rs, int rt) {
+    Instruction instr = new Instruction(function);
+    instr.writeReg = rd;
+    instr.readReg1 = rs;
+    instr.readReg2 = rt;
+    instr.controlBits |= GET_DATA1 | GET_DATA2;
+    return instr;
+  }
+
+  /**
+   * ALU rd, rs, #immediate
+   */
+  public static Instruction aluImmediate(Opcode function, int rd, int rs, int immediate) {
+    Instruction instr = new Instruction(function);
+    instr.writeReg = rd;
+    instr.readReg1 = rs;
+    instr.immediate = immediate;
+    instr.controlBits = (instr.controlBits & ~ALU_SRC) | GET_DATA1;
+    return instr;
+  }
+
+  /**
+   * LD/SD rt, offset(rs)
+   *
+   * rt is also decoded as read register 2 for LD even though the value is
+   * never read, matching the original decoder.
+   */
+  public static Instruction memory(Opcode function, int rt, int offset, int rs) {
+    Instruction instr = new Instruction(function);
+    instr.readReg1 = rs;
+    instr.readReg2 = rt;
+    instr.immediate = offset;
+    instr.controlBits |= GET_DATA1;
+    if ((instr.controlBits & MEM_READ) == 0) {
+      instr.controlBits |= GET_DATA2;
+    }
+    if ((instr.controlBits & REG_DST) != 0) {
+      instr.writeReg = rt;
     }
-    
-    // Set values of rs/rt/rd...
-    if (function == Opcode.DADD || function == Opcode.SUB) {
-      rd = tokens[1];
-      rs = tokens[2];
-      rt = tokens[3];
-    } else if (function == Opcode.LD || function == Opcode.SD) {
-      rt = tokens[1];
-      int parenLoc = tokens[2].indexOf("(");
-      immediate = Integer.decode(tokens[2].substring(0, parenLoc));
-      rs = tokens[2].substring(parenLoc + 1, tokens[2].length() - 1);
-      rd = null;
-    } else if (function == Opcode.BNEZ) {
-      rs = tokens[1];
-      rt = null;
-      rd = null;
-      String targetStr = tokens[2];
-      immediate = targetMap.get(targetStr) - instructionNum;
-    } else {
-      throw new UnsupportedOperationException("Funciton: " + function + " not supported");
+    return instr;
+  }
+
+  /**
+   * BEQZ/BNEZ rs, label. The target is filled in by
+   * {@link #setBranchTarget(int, int)} once the label is known.
+   */
+  public static Instruction branch(Opcode function, int rs, String targetLabel) {
+    Instruction instr = new Instruction(function);
+    instr.readReg1 = rs;
+    instr.targetLabel = targetLabel;
+    instr.controlBits |= GET_DATA1;
+    return instr;
+  }
+
+  /**
+   * BEQ/BNE rs, rt, label
+   */
+  public static Instruction branchCompare(Opcode function, int rs, int rt, String targetLabel) {
+    Instruction instr = branch(function, rs, targetLabel);
+    instr.readReg2 = rt;
+    instr.controlBits |= GET_DATA2;
+    return instr;
+  }
+
+  /**
+   * J label
+   */
+  public static Instruction jump(Opcode function, String targetLabel) {
+    Instruction instr = new Instruction(function);
+    instr.targetLabel = targetLabel;
+    return instr;
+  }
+
+  /**
+   * Sets the branch target of the instruction at index instructionNum.
+   * The immediate holds the offset from the branch.
+   */
+  public void setBranchTarget(int instructionNum, int target) {
+    branchTarget = target;
+    immediate = target - instructionNum;
+  }
+
+  /**
+   * Returns the control signal bits for an opcode.
+   */
+  public static int getControlBits(Opcode opcode) {
+    return opcode.controlBits;
+  }
+
+  /**
+   * Computes an ALU function.
+   */
+  public static long alu(int aluFunction, long operand1, long operand2) {
+    switch (aluFunction) {
+    case ALU_ADD:
+      return operand1 + operand2;
+    case ALU_SUB:
+      return operand1 - operand2;
+    case ALU_AND:
+      return operand1 & operand2;
+    case ALU_OR:
+      return operand1 | operand2;
+    case ALU_XOR:
+      return operand1 ^ operand2;
+    case ALU_SLL:
+      return operand1 << operand2;
+    case ALU_SRL:
+      return operand1 >>> operand2;
+    case ALU_SRA:
+      return operand1 >> operand2;
+    case ALU_SLT:
+      return (operand1 < operand2) ? 1 : 0;
+    case ALU_PASS:
+      return operand1;
+    default:
+      throw new UnsupportedOperationException("ALU function " + aluFunction + " not supported");
+    }
+  }
+
+  /**
+   * Returns true if a branch with the condition is taken, given whether its
+   * ALU result was zero.
+   */
+  public static boolean isTaken(int branchCondition, boolean zero) {
+    switch (branchCondition) {
+    case IF_ZERO:
+      return zero;
+    case IF_NONZERO:
+      return !zero;
+    case ALWAYS:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Returns the instruction in assembler syntax.
+   */
+  public String toString() {
+    String target = (targetLabel != null) ? targetLabel : String.valueOf(branchTarget);
+    switch (function.format) {
+    case MEMORY:
+      return function + " R" + readReg2 + ", " + immediate + "(R" + readReg1 + ")";
+    case BRANCH_ZERO:
+      return function + " R" + readReg1 + ", " + target;
+    case BRANCH:
+      return function + " R" + readReg1 + ", R" + readReg2 + ", " + target;
+    case JUMP:
+      return function + " " + target;
+    default:
+      if ((controlBits & ALU_SRC) != 0) {
+        return function + " R" + writeReg + ", R" + readReg1 + ", R" + readReg2;
+      } else {
+        return function + " R" + writeReg + ", R" + readReg1 + ", #" + immediate;
+      }
     }
   }
 }
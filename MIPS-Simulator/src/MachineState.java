@@ -0,0 +1,36 @@
+/**
+ * Architectural state of the simulated machine: the register file and main
+ * memory. Values are kept unboxed so the pipeline stages can read and write
+ * them without allocating. Registers and memory words are 64 bits wide.
+ */
+public interface MachineState {
+  public static final int NUM_REGISTERS = 32;
+
+  public long getRegister(int regNum);
+
+  public void setRegister(int regNum, long value);
+
+  /**
+   * Returns true if the register was given an initial value or has been
+   * written since.
+   */
+  public boolean isRegisterSet(int regNum);
+
+  /**
+   * Reads the word at an address. Addresses that were never written read as 0.
+   */
+  public long load(int address);
+
+  public void store(int address, long value);
+
+  /**
+   * Returns every address that holds a value, in ascending order. Addresses
+   * inside a {@link MemoryImage} are not listed.
+   */
+  public int[] getAddresses();
+
+  /**
+   * Returns the memory images mapped into the address space.
+   */
+  public MemoryImage[] getImages();
+}
@@ -0,0 +1,173 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A binary memory image mapped into the address space at a base address.
+ *
+ * The file holds raw big-endian memory: the word at address a is the
+ * doubleword at byte offset a - base, so a file of n doublewords covers
+ * addresses base, base + 8, ... base + 8(n - 1). The addresses in between
+ * aren't part of the image and stay in main memory, where every address is
+ * a word of its own, so no store changes a neighbouring word.
+ *
+ * The file is mapped read-only with {@link FileChannel#map}, so loading
+ * takes no time regardless of size.
+ * Stores are copy-on-write: the first store to a page copies it to the heap
+ * and the file itself is never modified. {@link #writeTo(String)} dumps the
+ * current contents, including modified pages, as a new image.
+ */
+public class MemoryImage {
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private String           name;
+  private int              base;
+  private int              size;
+  private MappedByteBuffer mapped;
+  private ByteBuffer[]     dirtyPages;  // Heap copies of pages written to
+
+  public MemoryImage(String path, int base) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Memory image too large: " + path);
+      }
+      size = (int) channel.size();
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      file.close();
+    }
+    this.name = new File(path).getName();
+    this.base = base;
+    dirtyPages = new ByteBuffer[(size + PAGE_SIZE - 1) >>> PAGE_BITS];
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getBase() {
+    return base;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Returns true if the address is one of the image's words.
+   */
+  public boolean contains(int address) {
+    long offset = (long) address - base;
+    return offset >= 0 && offset + 8 <= size && (offset & 7) == 0;
+  }
+
+  /**
+   * Loads a word the image {@link #contains(int)}. Words are aligned within
+   * the file, so a word never straddles two pages.
+   */
+  public long load(int address) {
+    int offset = address - base;
+    ByteBuffer page = dirtyPages[offset >>> PAGE_BITS];
+    if (page == null) {
+      return mapped.getLong(offset);
+    }
+    return page.getLong(offset & PAGE_MASK);
+  }
+
+  public void store(int address, long value) {
+    int offset = address - base;
+    getDirtyPage(offset).putLong(offset & PAGE_MASK, value);
+  }
+
+  /**
+   * Returns the heap copy of the page holding offset, copying it from the
+   * mapping on first use.
+   */
+  private ByteBuffer getDirtyPage(int offset) {
+    int pageNum = offset >>> PAGE_BITS;
+    ByteBuffer page = dirtyPages[pageNum];
+    if (page == null) {
+      page = ByteBuffer.allocate(PAGE_SIZE);
+      ByteBuffer source = mapped.duplicate();
+      source.position(pageNum << PAGE_BITS);
+      source.limit(Math.min(size, (pageNum + 1) << PAGE_BITS));
+      page.put(source);
+      dirtyPages[pageNum] = page;
+    }
+    return page;
+  }
+
+  /**
+   * Writes the current contents to a new image file.
+   */
+  public void writeTo(String path) throws IOException {
+    FileChannel channel = new FileOutputStream(path).getChannel();
+    try {
+      for (int pageNum = 0; pageNum < dirtyPages.length; pageNum++) {
+        int start = pageNum << PAGE_BITS;
+        int length = Math.min(PAGE_SIZE, size - start);
+        ByteBuffer page;
+        if (dirtyPages[pageNum] != null) {
+          page = dirtyPages[pageNum].duplicate();
+          page.position(0);
+        } else {
+          page = mapped.duplicate();
+          page.position(start);
+        }
+        page.limit(page.position() + length);
+        while (page.hasRemaining()) {
+          channel.write(page);
+        }
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Writes the pages that differ from the mapped file.
+   */
+  public void writeDirtyPages(DataOutput out) throws IOException {
+    int count = 0;
+    for (ByteBuffer page : dirtyPages) {
+      if (page != null) {
+        count++;
+      }
+    }
+    out.writeInt(count);
+    for (int pageNum = 0; pageNum < dirtyPages.length; pageNum++) {
+      if (dirtyPages[pageNum] != null) {
+        out.writeInt(pageNum);
+        out.write(dirtyPages[pageNum].array());
+      }
+    }
+  }
+
+  /**
+   * Replaces the modified pages with those written by
+   * {@link #writeDirtyPages(DataOutput)}.
+   */
+  public void readDirtyPages(DataInput in) throws IOException {
+    dirtyPages = new ByteBuffer[dirtyPages.length];
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      int pageNum = in.readInt();
+      if (pageNum < 0 || pageNum >= dirtyPages.length) {
+        throw new IOException("Checkpoint doesn't match memory image " + name);
+      }
+      byte[] page = new byte[PAGE_SIZE];
+      in.readFully(page);
+      dirtyPages[pageNum] = ByteBuffer.wrap(page);
+    }
+  }
+}
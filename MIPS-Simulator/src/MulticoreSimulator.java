@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Phaser;
+
+/**
+ * Simulates several cores, each running its own program on its own
+ * {@link Simulator} pipeline, sharing one {@link SharedMemory}.
+ *
+ * The cores are spread over up to one host thread each, core n on thread n
+ * modulo the thread count, and the threads step in lock-step through a
+ * {@link Phaser} with two phases per simulated cycle. In the first phase
+ * every core simulates one cycle; shared memory is only read, and stores wait
+ * in the core's {@link CoreMachineState} store buffer. In the second phase
+ * the buffers are committed: thread n writes the stripes of shared memory
+ * whose number is n modulo the thread count, taking the cores in order, so
+ * stripes are written in parallel without locks and the outcome of
+ * same-cycle stores to one address never depends on thread timing. The
+ * traces, final registers and final memory are the same from run to run and
+ * for any number of threads.
+ *
+ * Each program's initial memory is written to shared memory before the run,
+ * in core order. Programs with memory images aren't supported.
+ */
+public class MulticoreSimulator {
+  public static final int    STRIPES = 64;
+
+  private List<String>       inputPaths;
+  private String             outputDir;
+  private TraceLevel         level;
+  private boolean            binary;
+  private int                threadCount;
+  private PipelineConfig     config;
+  private SharedMemory       memory;
+  private CoreMachineState[] states;
+  private Simulator[]        cores;
+  private Trace[]            traces;
+  private boolean[]          finished;
+  private Throwable          failure;
+  private long               elapsedNanos;
+
+  /**
+   * @param threads the most host threads to use; more than one per core
+   *          doesn't help
+   */
+  public MulticoreSimulator(List<String> inputPaths, String outputDir, int threads,
+      TraceLevel level, boolean binary) {
+    this.inputPaths = inputPaths;
+    this.outputDir = outputDir;
+    threadCount = Math.max(1, Math.min(threads, inputPaths.size()));
+    this.level = level;
+    this.binary = binary;
+    config = PipelineConfig.DEFAULT;
+  }
+
+  /**
+   * Sets the pipeline every core is simulated on.
+   */
+  public void setPipelineConfig(PipelineConfig config) {
+    this.config = config;
+  }
+
+  /**
+   * Loads the programs and opens a trace per core, core0.out, core1.out and
+   * so on in the output directory.
+   */
+  private void load() throws IOException {
+    int count = inputPaths.size();
+    memory = new SharedMemory(STRIPES);
+    states = new CoreMachineState[count];
+    cores = new Simulator[count];
+    traces = new Trace[count];
+    finished = new boolean[count];
+    new File(outputDir).mkdirs();
+    for (int core = 0; core < count; core++) {
+      InputParser parser = new InputParser(inputPaths.get(core));
+      parser.parseFile();
+      MachineState initial = parser.getMachineState();
+      if (initial.getImages().length > 0) {
+        throw new IOException(inputPaths.get(core) + ": memory images can't be shared");
+      }
+      states[core] = new CoreMachineState(memory);
+      for (int regNum = 0; regNum < MachineState.NUM_REGISTERS; regNum++) {
+        if (initial.isRegisterSet(regNum)) {
+          states[core].setRegister(regNum, initial.getRegister(regNum));
+        }
+      }
+      for (int address : initial.getAddresses()) {
+        memory.store(address, initial.load(address));
+      }
+      String outputPath = new File(outputDir, "core" + core + (binary ? ".bin" : ".out"))
+          .getPath();
+      traces[core] = Simulator.createTrace(outputPath, level, false, binary,
+          config.getLabels());
+      cores[core] = new Simulator(parser.getInstructionMemory(), states[core], 0, traces[core],
+          config);
+    }
+  }
+
+  /**
+   * Runs every core until all of them have finished, then writes each
+   * core's registers and the shared memory to its trace.
+   */
+  public void run() throws IOException, InterruptedException {
+    load();
+    final Phaser phaser = new Phaser(threadCount) {
+      protected boolean onAdvance(int phase, int registeredParties) {
+        // Stop after a commit phase once every core is done
+        if (phase % 2 == 0) {
+          return false;
+        }
+        for (boolean done : finished) {
+          if (!done) {
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+    Thread[] threads = new Thread[threadCount];
+    long start = System.nanoTime();
+    for (int thread = 0; thread < threadCount; thread++) {
+      final int id = thread;
+      threads[thread] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            runThread(id, phaser);
+          } catch (Throwable e) {
+            synchronized (MulticoreSimulator.this) {
+              if (failure == null) {
+                failure = e;
+              }
+            }
+            phaser.forceTermination();
+          }
+        }
+      }, "multicore-" + thread);
+      threads[thread].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    elapsedNanos = System.nanoTime() - start;
+    for (int core = 0; core < cores.length; core++) {
+      if (failure == null) {
+        cores[core].printResults();
+      }
+      traces[core].close();
+    }
+    if (failure != null) {
+      throw new IOException("Core failed: " + failure.toString());
+    }
+  }
+
+  /**
+   * Simulates the cores of one thread, a cycle at a time, and commits its
+   * stripes of shared memory after each cycle.
+   */
+  private void runThread(int id, Phaser phaser) {
+    while (true) {
+      for (int core = id; core < cores.length; core += threadCount) {
+        states[core].clearPending();
+        if (!finished[core]) {
+          finished[core] = !cores[core].runCycle();
+        }
+      }
+      if (phaser.arriveAndAwaitAdvance() < 0) {
+        return;
+      }
+      for (CoreMachineState state : states) {
+        state.commit(id, threadCount);
+      }
+      if (phaser.arriveAndAwaitAdvance() < 0) {
+        return;
+      }
+    }
+  }
+
+  public Simulator getCore(int core) {
+    return cores[core];
+  }
+
+  public SharedMemory getSharedMemory() {
+    return memory;
+  }
+
+  /**
+   * Writes one line per core followed by the totals and the host throughput.
+   */
+  public void report(PrintStream out) {
+    String format = "%-6s %-40s %10s %12s %7s%n";
+    out.println("MULTICORE");
+    out.printf(format, "core", "input", "cycles", "instructions", "CPI");
+    long cycles = 0;
+    long coreCycles = 0;
+    long instructions = 0;
+    for (int core = 0; core < cores.length; core++) {
+      PerformanceCounters counters = cores[core].getCounters();
+      out.printf(format, core, inputPaths.get(core), counters.cycles,
+          counters.instructionsRetired, String.format("%.3f", counters.getCPI()));
+      cycles = Math.max(cycles, counters.cycles);
+      coreCycles += counters.cycles;
+      instructions += counters.instructionsRetired;
+    }
+    out.println("cycles " + cycles);
+    out.println("IPC " + String.format("%.3f", (cycles > 0) ? (double) instructions / cycles
+        : 0));
+    out.println("host threads " + threadCount);
+    out.println("host ms " + String.format("%.1f", elapsedNanos / 1e6));
+    out.println("core cycles per second " + String.format("%.0f", (elapsedNanos > 0)
+        ? coreCycles * 1e9 / elapsedNanos : 0));
+  }
+}
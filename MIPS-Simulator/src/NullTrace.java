@@ -0,0 +1,36 @@
+/**
+ * {@link Trace} that discards every event.
+ */
+public class NullTrace implements Trace {
+  public void beginCycle(int cycle) {
+  }
+
+  public void stage(int instructNum, int event) {
+  }
+
+  public void endCycle() {
+  }
+
+  public boolean tracesCycles() {
+    return false;
+  }
+
+  public void beginRegisters() {
+  }
+
+  public void register(int regNum, long value) {
+  }
+
+  public void beginMemory() {
+  }
+
+  public void memory(int address, long value) {
+  }
+
+  public long checkpoint() {
+    return 0;
+  }
+
+  public void close() {
+  }
+}
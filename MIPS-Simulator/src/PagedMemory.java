@@ -0,0 +1,167 @@
+/**
+ * Sparse word-addressed memory of 64-bit words backed by primitive pages.
+ *
+ * Addresses are split into directory, table and page offset bits. Tables and
+ * pages are only allocated once an address inside them is written, so a few
+ * scattered values cost a few pages rather than the whole address space.
+ * Each page keeps a bitmap of the words that hold a value so the contents can
+ * be listed in address order.
+ *
+ * {@link #copy()} is copy-on-write: the copy shares the tables and pages,
+ * and each memory copies a shared table or page the first time it writes to
+ * it. Tables and pages are tagged with the identity of the one memory that
+ * may write them in place.
+ */
+public class PagedMemory {
+  private static final int PAGE_BITS      = 10;
+  private static final int TABLE_BITS     = 11;
+  private static final int DIRECTORY_BITS = 32 - PAGE_BITS - TABLE_BITS;
+  private static final int PAGE_SIZE      = 1 << PAGE_BITS;
+  private static final int PAGE_MASK      = PAGE_SIZE - 1;
+  private static final int TABLE_MASK     = (1 << TABLE_BITS) - 1;
+
+  private Page[][]         directory;
+  private Object[]         tableOwners; // Identity of the memory owning each table
+  private Object           identity;
+  private int              size;
+
+  private static class Page {
+    long[] data;
+    long[] mapped;
+    Object owner;
+
+    Page(Object owner) {
+      data = new long[PAGE_SIZE];
+      mapped = new long[PAGE_SIZE / 64];
+      this.owner = owner;
+    }
+
+    Page(Page page, Object owner) {
+      data = page.data.clone();
+      mapped = page.mapped.clone();
+      this.owner = owner;
+    }
+  }
+
+  public PagedMemory() {
+    this(new Page[1 << DIRECTORY_BITS][], 0);
+  }
+
+  private PagedMemory(Page[][] directory, int size) {
+    this.directory = directory;
+    tableOwners = new Object[directory.length];
+    identity = new Object();
+    this.size = size;
+  }
+
+  /**
+   * Returns a copy of this memory in time proportional to the directory
+   * size, not the contents. Neither memory sees the other's later stores.
+   * Not thread safe: this memory must not be used by another thread while
+   * it is copied.
+   */
+  public PagedMemory copy() {
+    // Both memories lose ownership of everything shared so far
+    identity = new Object();
+    return new PagedMemory(directory.clone(), size);
+  }
+
+  /**
+   * Maps a signed address to an index whose unsigned order matches the signed
+   * order of the addresses.
+   */
+  private static int toIndex(int address) {
+    return address ^ Integer.MIN_VALUE;
+  }
+
+  private static int toAddress(int index) {
+    return index ^ Integer.MIN_VALUE;
+  }
+
+  private Page getPage(int index) {
+    Page[] table = directory[index >>> (PAGE_BITS + TABLE_BITS)];
+    if (table == null) {
+      return null;
+    }
+    return table[(index >>> PAGE_BITS) & TABLE_MASK];
+  }
+
+  private Page getOrCreatePage(int index) {
+    int dirNum = index >>> (PAGE_BITS + TABLE_BITS);
+    Page[] table = directory[dirNum];
+    if (table == null) {
+      table = new Page[1 << TABLE_BITS];
+      directory[dirNum] = table;
+      tableOwners[dirNum] = identity;
+    } else if (tableOwners[dirNum] != identity) {
+      table = table.clone();
+      directory[dirNum] = table;
+      tableOwners[dirNum] = identity;
+    }
+    int tableNum = (index >>> PAGE_BITS) & TABLE_MASK;
+    Page page = table[tableNum];
+    if (page == null) {
+      page = new Page(identity);
+      table[tableNum] = page;
+    } else if (page.owner != identity) {
+      page = new Page(page, identity);
+      table[tableNum] = page;
+    }
+    return page;
+  }
+
+  public long load(int address) {
+    int index = toIndex(address);
+    Page page = getPage(index);
+    return (page != null) ? page.data[index & PAGE_MASK] : 0;
+  }
+
+  public void store(int address, long value) {
+    int index = toIndex(address);
+    Page page = getOrCreatePage(index);
+    int offset = index & PAGE_MASK;
+    long bit = 1L << offset;
+    if ((page.mapped[offset >>> 6] & bit) == 0) {
+      page.mapped[offset >>> 6] |= bit;
+      size++;
+    }
+    page.data[offset] = value;
+  }
+
+  /**
+   * Number of addresses holding a value.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns every address holding a value, in ascending signed order.
+   */
+  public int[] getAddresses() {
+    int[] addresses = new int[size];
+    int count = 0;
+    for (int dirNum = 0; dirNum < directory.length; dirNum++) {
+      Page[] table = directory[dirNum];
+      if (table == null) {
+        continue;
+      }
+      for (int tableNum = 0; tableNum < table.length; tableNum++) {
+        Page page = table[tableNum];
+        if (page == null) {
+          continue;
+        }
+        int base = (dirNum << (PAGE_BITS + TABLE_BITS)) | (tableNum << PAGE_BITS);
+        for (int word = 0; word < page.mapped.length; word++) {
+          long bits = page.mapped[word];
+          while (bits != 0) {
+            int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+            addresses[count++] = toAddress(base | offset);
+            bits &= bits - 1;
+          }
+        }
+      }
+    }
+    return addresses;
+  }
+}
@@ -0,0 +1,148 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Microarchitectural event counts for a simulation run. The pipeline stages
+ * update the fields directly so counting costs an increment per event.
+ */
+public class PerformanceCounters {
+  public long   cycles;
+  public long   instructionsFetched;
+  public long   instructionsRetired;
+  public long   loadUseStalls;      // Cycles an instruction was held in EX
+  public long   memoryStalls;       // Cycles an instruction was held in MEM by a cache miss
+  public long   branches;           // Branches resolved in EX
+  public long   branchesTaken;
+  public long   branchFlushes;      // Mispredicted branches that killed younger stages
+  public long   instructionsKilled;
+  public long[] forwards;           // Operands forwarded, indexed by source stage
+  public long   registerReads;      // Operands read from the register file
+  public long   memoryReads;
+  public long   memoryWrites;
+  public long[] issueCycles;        // Cycles EX issued n instructions, indexed by n
+
+  private String[] stageLabels;
+
+  public PerformanceCounters(String[] stageLabels) {
+    this(stageLabels, 1);
+  }
+
+  /**
+   * @param issueWidth the most instructions EX can issue in a cycle
+   */
+  public PerformanceCounters(String[] stageLabels, int issueWidth) {
+    this.stageLabels = stageLabels;
+    forwards = new long[stageLabels.length];
+    issueCycles = new long[issueWidth + 1];
+  }
+
+  /**
+   * Cycles per retired instruction.
+   */
+  public double getCPI() {
+    return (instructionsRetired > 0) ? (double) cycles / instructionsRetired : 0;
+  }
+
+  /**
+   * Instructions retired per cycle.
+   */
+  public double getIPC() {
+    return (cycles > 0) ? (double) instructionsRetired / cycles : 0;
+  }
+
+  /**
+   * Fraction of resolved branches whose fetch direction and target were
+   * right.
+   */
+  public double getPredictionAccuracy() {
+    return (branches > 0) ? 1 - (double) branchFlushes / branches : 0;
+  }
+
+  public long getTotalForwards() {
+    long total = 0;
+    for (long count : forwards) {
+      total += count;
+    }
+    return total;
+  }
+
+  public void report(PrintStream out) {
+    out.println("COUNTERS");
+    out.println("cycles " + cycles);
+    out.println("instructions fetched " + instructionsFetched);
+    out.println("instructions retired " + instructionsRetired);
+    out.println("CPI " + String.format("%.3f", getCPI()));
+    out.println("IPC " + String.format("%.3f", getIPC()));
+    out.println("load-use stalls " + loadUseStalls);
+    out.println("memory stalls " + memoryStalls);
+    out.println("branches " + branches);
+    out.println("taken branches " + branchesTaken);
+    out.println("branch flushes " + branchFlushes);
+    out.println("instructions killed " + instructionsKilled);
+    for (int stageNum = 1; stageNum < forwards.length; stageNum++) {
+      if (forwards[stageNum] > 0) {
+        out.println("forwards from " + stageLabels[stageNum] + " " + forwards[stageNum]);
+      }
+    }
+    out.println("register file reads " + registerReads);
+    out.println("memory reads " + memoryReads);
+    out.println("memory writes " + memoryWrites);
+    if (issueCycles.length > 2) {
+      for (int count = 0; count < issueCycles.length; count++) {
+        out.println("cycles issuing " + count + " " + issueCycles[count]);
+      }
+    }
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeLong(cycles);
+    out.writeLong(instructionsFetched);
+    out.writeLong(instructionsRetired);
+    out.writeLong(loadUseStalls);
+    out.writeLong(memoryStalls);
+    out.writeLong(branches);
+    out.writeLong(branchesTaken);
+    out.writeLong(branchFlushes);
+    out.writeLong(instructionsKilled);
+    out.writeInt(forwards.length);
+    for (long count : forwards) {
+      out.writeLong(count);
+    }
+    out.writeLong(registerReads);
+    out.writeLong(memoryReads);
+    out.writeLong(memoryWrites);
+    out.writeInt(issueCycles.length);
+    for (long count : issueCycles) {
+      out.writeLong(count);
+    }
+  }
+
+  public void readFrom(DataInput in) throws IOException {
+    cycles = in.readLong();
+    instructionsFetched = in.readLong();
+    instructionsRetired = in.readLong();
+    loadUseStalls = in.readLong();
+    memoryStalls = in.readLong();
+    branches = in.readLong();
+    branchesTaken = in.readLong();
+    branchFlushes = in.readLong();
+    instructionsKilled = in.readLong();
+    if (in.readInt() != forwards.length) {
+      throw new IOException("Checkpoint has a different number of stages!");
+    }
+    for (int i = 0; i < forwards.length; i++) {
+      forwards[i] = in.readLong();
+    }
+    registerReads = in.readLong();
+    memoryReads = in.readLong();
+    memoryWrites = in.readLong();
+    if (in.readInt() != issueCycles.length) {
+      throw new IOException("Checkpoint has a different issue width!");
+    }
+    for (int i = 0; i < issueCycles.length; i++) {
+      issueCycles[i] = in.readLong();
+    }
+  }
+}
@@ -1,121 +1,166 @@
-public class PipelineBuffer {
-
-  /* Instruction Info */
-  public Instruction        instr;
-  public int                instructNum;
-  public Instruction.Opcode opcode;
-  /* Data Items IF */
-  public int                curPC;
-  /* Data Items ID */
-  public int                readReg1;
-  public int                readData1;
-  public int                readReg2;
-  public int                readData2;
-  public int                writeReg;
-  public int                immediate;
-  public int                branchAddr;  // Target address of a branch curPC +
-                                         // immediate
-  /* Data Items EX */
-  public int                aluResult;  // Output of EX ALU
-  public boolean            zero;       // Set to 1 if aluResult == 0
-  /* Data Items MEM */
-  public int                memData;
-  /* Control Signals */
-  public int                aluSrc;     // Sets source of op2 1=read2
-                                         // 0=immediate
-  public int                memRead;    // Enables read of main memory
-  public int                memWrite;   // Enables write to main memory
-  public int                memToReg;   // Sets source of writeData 1=memData
-                                         // 0=aluResult
-  public int                branch;     // Set if branch is possible
-  public int                regWrite;   // Enables write to a register
-  public int                regDst;     // Sets destination register 1=rt 0=rd
-  /* Other */
-  public int                pcSrc;
-  public int                nextPC;
-  public boolean            getData1;
-  public boolean            getData2;
-
-  public PipelineBuffer(Instruction curInstr, int num) {
-    instructNum = num;
-    instr = curInstr;
-    opcode = curInstr.function;
-  }
-
-  public boolean branchTaken() {
-    if (branch == 0) {
-      return false;
-    } else {
-      switch (opcode) {
-      case BNEZ:
-        return !zero;
-      default:
-        return false;
-      }
-    }
-  }
-
-  public void setControlSignals() {
-    // Compute Control Signals
-    switch (opcode) {
-    case DADD:
-      regDst = 0;
-      regWrite = 1;
-      aluSrc = 1;
-      memWrite = 0;
-      memRead = 0;
-      memToReg = 0;
-      branch = 0;
-      pcSrc = 1;
-      break;
-
-    case SUB:
-      regDst = 0;
-      regWrite = 1;
-      aluSrc = 1;
-      memWrite = 0;
-      memRead = 0;
-      memToReg = 0;
-      branch = 0;
-      pcSrc = 1;
-      break;
-
-    case LD:
-      regDst = 1;
-      regWrite = 1;
-      aluSrc = 0;
-      memWrite = 0;
-      memRead = 1;
-      memToReg = 1;
-      branch = 0;
-      pcSrc = 1;
-      break;
-
-    case SD:
-      regDst = 0;
-      regWrite = 0;
-      aluSrc = 0;
-      memWrite = 1;
-      memRead = 0;
-      memToReg = -1;
-      branch = 0;
-      pcSrc = 1;
-      break;
-
-    case BNEZ:
-      regDst = -1;
-      regWrite = 0;
-      aluSrc = 0;
-      memWrite = 0;
-      memRead = 0;
-      memToReg = -1;
-      branch = 1;
-      pcSrc = 0;
-      break;
-
-    default:
-      System.out.println("NOT VALID OPCODE");
-      break;
-    }
-  }
-}
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class PipelineBuffer {
+
+  /* Instruction Info */
+  public Instruction        instr;
+  public int                instructNum;
+  public Instruction.Opcode opcode;
+  /* Data Items IF */
+  public int                curPC;
+  /* Data Items ID */
+  public int                readReg1;
+  public long               readData1;
+  public int                readReg2;
+  public long               readData2;
+  public int                writeReg;
+  public int                immediate;
+  public int                branchAddr;  // Target address of a branch curPC +
+                                         // immediate
+  /* Data Items EX */
+  public long               aluResult;  // Output of EX ALU
+  public boolean            zero;       // Set to 1 if aluResult == 0
+  /* Data Items MEM */
+  public long               memData;
+  /* Control Signals */
+  public int                aluSrc;     // Sets source of op2 1=read2
+                                         // 0=immediate
+  public int                memRead;    // Enables read of main memory
+  public int                memWrite;   // Enables write to main memory
+  public int                memToReg;   // Sets source of writeData 1=memData
+                                         // 0=aluResult
+  public int                branch;     // Set if branch is possible
+  public int                regWrite;   // Enables write to a register
+  public int                regDst;     // Sets destination register 1=rt 0=rd
+  /* Other */
+  public boolean            getData1;
+  public boolean            getData2;
+  public boolean            predictedTaken; // Set by IF1 when fetch went on at predictedPC
+  public int                predictedPC;
+  public int                predictorIndex; // Predictor entry IF1 consulted for a branch
+
+  public PipelineBuffer() {
+  }
+
+  public PipelineBuffer(Instruction curInstr, int num) {
+    reset(curInstr, num);
+  }
+
+  /**
+   * Clears every field so the buffer can be reused for another instruction.
+   */
+  public void reset(Instruction curInstr, int num) {
+    instructNum = num;
+    instr = curInstr;
+    opcode = curInstr.function;
+    curPC = 0;
+    readReg1 = 0;
+    readData1 = 0;
+    readReg2 = 0;
+    readData2 = 0;
+    writeReg = 0;
+    immediate = 0;
+    branchAddr = 0;
+    aluResult = 0;
+    zero = false;
+    memData = 0;
+    aluSrc = 0;
+    memRead = 0;
+    memWrite = 0;
+    memToReg = 0;
+    branch = 0;
+    regWrite = 0;
+    regDst = 0;
+    getData1 = false;
+    getData2 = false;
+    predictedTaken = false;
+    predictedPC = 0;
+    predictorIndex = 0;
+  }
+
+  public boolean branchTaken() {
+    return branch != 0 && Instruction.isTaken(opcode.branchCondition, zero);
+  }
+
+  /**
+   * Copies the pre-decoded fields and control signals from the instruction.
+   */
+  public void decode() {
+    int bits = instr.controlBits;
+    regDst = (bits & Instruction.REG_DST) != 0 ? 1 : 0;
+    regWrite = (bits & Instruction.REG_WRITE) != 0 ? 1 : 0;
+    aluSrc = (bits & Instruction.ALU_SRC) != 0 ? 1 : 0;
+    memWrite = (bits & Instruction.MEM_WRITE) != 0 ? 1 : 0;
+    memRead = (bits & Instruction.MEM_READ) != 0 ? 1 : 0;
+    memToReg = (bits & Instruction.MEM_TO_REG) != 0 ? 1 : 0;
+    branch = (bits & Instruction.BRANCH) != 0 ? 1 : 0;
+    getData1 = (bits & Instruction.GET_DATA1) != 0;
+    getData2 = (bits & Instruction.GET_DATA2) != 0;
+    readReg1 = instr.readReg1;
+    readReg2 = instr.readReg2;
+    writeReg = instr.writeReg;
+    immediate = instr.immediate;
+    branchAddr = instr.branchTarget;
+  }
+
+  /**
+   * Writes the decoded fields, results and control signals. The instruction,
+   * its number and curPC are saved by the caller, which needs them to acquire
+   * the buffer again before {@link #readFrom(DataInput)}.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(readReg1);
+    out.writeLong(readData1);
+    out.writeInt(readReg2);
+    out.writeLong(readData2);
+    out.writeInt(writeReg);
+    out.writeInt(immediate);
+    out.writeInt(branchAddr);
+    out.writeLong(aluResult);
+    out.writeBoolean(zero);
+    out.writeLong(memData);
+    out.writeByte(aluSrc);
+    out.writeByte(memRead);
+    out.writeByte(memWrite);
+    out.writeByte(memToReg);
+    out.writeByte(branch);
+    out.writeByte(regWrite);
+    out.writeByte(regDst);
+    out.writeBoolean(getData1);
+    out.writeBoolean(getData2);
+    out.writeBoolean(predictedTaken);
+    out.writeInt(predictedPC);
+    out.writeInt(predictorIndex);
+  }
+
+  /**
+   * Reads the fields written by {@link #writeTo(DataOutput)} into a buffer
+   * already reset for its instruction.
+   */
+  public void readFrom(DataInput in) throws IOException {
+    readReg1 = in.readInt();
+    readData1 = in.readLong();
+    readReg2 = in.readInt();
+    readData2 = in.readLong();
+    writeReg = in.readInt();
+    immediate = in.readInt();
+    branchAddr = in.readInt();
+    aluResult = in.readLong();
+    zero = in.readBoolean();
+    memData = in.readLong();
+    aluSrc = in.readByte();
+    memRead = in.readByte();
+    memWrite = in.readByte();
+    memToReg = in.readByte();
+    branch = in.readByte();
+    regWrite = in.readByte();
+    regDst = in.readByte();
+    getData1 = in.readBoolean();
+    getData2 = in.readBoolean();
+    predictedTaken = in.readBoolean();
+    predictedPC = in.readInt();
+    predictorIndex = in.readInt();
+  }
+}
@@ -0,0 +1,43 @@
+/**
+ * Fixed pool of {@link PipelineBuffer}s so the pipeline can run without
+ * allocating a buffer for every fetched instruction.
+ *
+ * A buffer is acquired by IF1 and released when it leaves the pipeline,
+ * either after WB or when it is killed. One buffer per stage and issue slot
+ * is enough.
+ */
+public class PipelineBufferPool {
+  private PipelineBuffer[] free;
+  private int              freeCount;
+
+  public PipelineBufferPool(int size) {
+    free = new PipelineBuffer[size];
+    for (int i = 0; i < size; i++) {
+      free[i] = new PipelineBuffer();
+    }
+    freeCount = size;
+  }
+
+  /**
+   * Returns a buffer reset for the given instruction.
+   */
+  public PipelineBuffer acquire(Instruction curInstr, int num) {
+    if (freeCount == 0) {
+      throw new IllegalStateException("No free pipeline buffers");
+    }
+    PipelineBuffer buffer = free[--freeCount];
+    free[freeCount] = null;
+    buffer.reset(curInstr, num);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. Null buffers (bubbles) are ignored.
+   */
+  public void release(PipelineBuffer buffer) {
+    if (buffer != null) {
+      buffer.instr = null;
+      free[freeCount++] = buffer;
+    }
+  }
+}
@@ -0,0 +1,438 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Shape of the pipeline simulated by {@link Simulator}: the stage list, which
+ * stage plays which role and when results can be forwarded to EX.
+ *
+ * Stages are numbered from 1 (fetch) to the depth (write back). The stages
+ * between fetch and execute hold instructions in order and are flushed by a
+ * taken branch; one of them decodes. The stages between execute and write
+ * back carry instructions on to memory; one of them accesses memory and the
+ * rest only add latency.
+ *
+ * An ALU result or loaded value can be forwarded to EX once its instruction
+ * has reached the forward stage for its kind. An instruction in EX stalls
+ * while an instruction ahead of it that writes one of its registers is
+ * between EX and that forward stage. A forward stage equal to the write back
+ * stage means the value is only read from the register file.
+ *
+ * Configs are read from a properties file:
+ *
+ * <pre>
+ * # Classic five stage pipeline with a load-use stall
+ * stages = IF ID EX MEM WB
+ * decode = ID
+ * execute = EX
+ * memory = MEM
+ * forward.alu = MEM
+ * forward.load = WB
+ * </pre>
+ *
+ * Without stages the list is built from fetch.stages (default 2) and
+ * memory.latency (default 3) as IF1.. ID EX MEM1.. WB. The roles default to
+ * ID, EX and the first stage whose name starts with MEM, ALU results forward
+ * from the stage after EX and loaded values from the stage before WB, or from
+ * the stage after memory if that is later. The defaults describe the original
+ * eight stage machine, {@link #DEFAULT}.
+ *
+ * The branch predictor used at IF1 is chosen with predictor (not-taken,
+ * taken, 1-bit, 2-bit or gshare; default not-taken, as in the original
+ * machine), predictor.entries (default 1024), predictor.history for gshare
+ * (default 10) and btb.entries (default 64).
+ *
+ * A {@link DataCache} in front of memory is added with cache.size in bytes
+ * (default 0, no cache, so every access takes the fixed memory latency),
+ * cache.ways (default 1), cache.line (default 32 bytes),
+ * cache.replacement (lru or plru, default lru), cache.write (back or
+ * through, default back), cache.miss.latency (default 10 cycles) and
+ * cache.writeback.latency (default the miss latency). A miss holds its
+ * instruction in the memory stage and stalls the stages behind it.
+ *
+ * issue.width (default 1) makes the pipeline superscalar: every stage holds
+ * a group of up to that many instructions, fetched together and issued in
+ * order from EX.
+ */
+public class PipelineConfig {
+  public enum StageKind {
+    FETCH, FRONT, DECODE, EXECUTE, BACK, MEMORY, WRITEBACK
+  }
+
+  public static final String         STALL_LABEL = "stall";
+  public static final PipelineConfig DEFAULT     = new PipelineConfig(new String[] { "IF1",
+      "IF2", "ID", "EX", "MEM1", "MEM2", "MEM3", "WB" }, "ID", "EX", "MEM1", "MEM1", "MEM3");
+
+  private String[]    labels;          // Indexed by stage number, 0 is "stall"
+  private StageKind[] kinds;           // Indexed by stage number
+  private int         executeStage;
+  private int         memoryStage;
+  private int         aluForwardStage;
+  private int         loadForwardStage;
+  private String      predictor;
+  private int         predictorEntries;
+  private int         historyBits;
+  private int         btbEntries;
+  private int         issueWidth;
+  private int         cacheSize;
+  private int         cacheWays;
+  private int         cacheLineSize;
+  private String      cacheReplacement;
+  private boolean     cacheWriteBack;
+  private int         cacheMissLatency;
+  private int         cacheWritebackLatency;
+
+  /**
+   * Builds a config from the stage names in order and the names of the
+   * stages that play each role.
+   *
+   * @throws IllegalArgumentException if a name is unknown or a stage is out
+   *           of order
+   */
+  public PipelineConfig(String[] stageNames, String decode, String execute, String memory,
+      String aluForward, String loadForward) {
+    int depth = stageNames.length;
+    labels = new String[depth + 1];
+    labels[0] = STALL_LABEL;
+    for (int i = 0; i < depth; i++) {
+      for (int j = 0; j < i; j++) {
+        if (stageNames[j].equals(stageNames[i])) {
+          throw new IllegalArgumentException("Stage " + stageNames[i] + " listed twice");
+        }
+      }
+      labels[i + 1] = stageNames[i];
+    }
+    int decodeStage = findStage(decode);
+    executeStage = findStage(execute);
+    memoryStage = findStage(memory);
+    aluForwardStage = findStage(aluForward);
+    loadForwardStage = findStage(loadForward);
+    if (decodeStage <= 1 || executeStage <= decodeStage) {
+      throw new IllegalArgumentException("Decode must come after fetch and before execute");
+    }
+    if (memoryStage <= executeStage || memoryStage >= depth) {
+      throw new IllegalArgumentException("Memory must come after execute and before write back");
+    }
+    if (aluForwardStage <= executeStage || loadForwardStage <= memoryStage) {
+      throw new IllegalArgumentException("Results can't be forwarded before they are ready");
+    }
+    predictor = "not-taken";
+    predictorEntries = 1024;
+    historyBits = 10;
+    btbEntries = 64;
+    issueWidth = 1;
+    cacheSize = 0;
+    kinds = new StageKind[depth + 1];
+    for (int stageNum = 1; stageNum <= depth; stageNum++) {
+      if (stageNum == 1) {
+        kinds[stageNum] = StageKind.FETCH;
+      } else if (stageNum == decodeStage) {
+        kinds[stageNum] = StageKind.DECODE;
+      } else if (stageNum < executeStage) {
+        kinds[stageNum] = StageKind.FRONT;
+      } else if (stageNum == executeStage) {
+        kinds[stageNum] = StageKind.EXECUTE;
+      } else if (stageNum == memoryStage) {
+        kinds[stageNum] = StageKind.MEMORY;
+      } else if (stageNum < depth) {
+        kinds[stageNum] = StageKind.BACK;
+      } else {
+        kinds[stageNum] = StageKind.WRITEBACK;
+      }
+    }
+  }
+
+  private PipelineConfig(PipelineConfig config) {
+    labels = config.labels;
+    kinds = config.kinds;
+    executeStage = config.executeStage;
+    memoryStage = config.memoryStage;
+    aluForwardStage = config.aluForwardStage;
+    loadForwardStage = config.loadForwardStage;
+    predictor = config.predictor;
+    predictorEntries = config.predictorEntries;
+    historyBits = config.historyBits;
+    btbEntries = config.btbEntries;
+    issueWidth = config.issueWidth;
+    cacheSize = config.cacheSize;
+    cacheWays = config.cacheWays;
+    cacheLineSize = config.cacheLineSize;
+    cacheReplacement = config.cacheReplacement;
+    cacheWriteBack = config.cacheWriteBack;
+    cacheMissLatency = config.cacheMissLatency;
+    cacheWritebackLatency = config.cacheWritebackLatency;
+  }
+
+  /**
+   * Returns a copy of this config with a different branch predictor.
+   *
+   * @throws IllegalArgumentException if the predictor is unknown or a table
+   *           size isn't a power of two
+   */
+  public PipelineConfig withBranchPredictor(String predictor, int entries, int historyBits,
+      int btbEntries) {
+    PipelineConfig config = new PipelineConfig(this);
+    config.predictor = predictor;
+    config.predictorEntries = entries;
+    config.historyBits = historyBits;
+    config.btbEntries = btbEntries;
+    // Fail now rather than when a simulator is built
+    config.createBranchPredictor();
+    config.createBranchTargetBuffer();
+    return config;
+  }
+
+  /**
+   * Returns a copy of this config that fetches and issues up to width
+   * instructions a cycle.
+   *
+   * @throws IllegalArgumentException if width is less than 1
+   */
+  public PipelineConfig withIssueWidth(int width) {
+    if (width < 1) {
+      throw new IllegalArgumentException("Issue width must be at least 1");
+    }
+    PipelineConfig config = new PipelineConfig(this);
+    config.issueWidth = width;
+    return config;
+  }
+
+  /**
+   * Returns a copy of this config with a data cache, or without one if size
+   * is 0.
+   *
+   * @throws IllegalArgumentException if the replacement policy is unknown or
+   *           the geometry is invalid
+   */
+  public PipelineConfig withDataCache(int size, int ways, int lineSize, String replacement,
+      boolean writeBack, int missLatency, int writebackLatency) {
+    PipelineConfig config = new PipelineConfig(this);
+    config.cacheSize = size;
+    config.cacheWays = ways;
+    config.cacheLineSize = lineSize;
+    config.cacheReplacement = replacement;
+    config.cacheWriteBack = writeBack;
+    config.cacheMissLatency = missLatency;
+    config.cacheWritebackLatency = writebackLatency;
+    config.createDataCache();
+    return config;
+  }
+
+  private int findStage(String name) {
+    for (int stageNum = 1; stageNum < labels.length; stageNum++) {
+      if (labels[stageNum].equals(name)) {
+        return stageNum;
+      }
+    }
+    throw new IllegalArgumentException("Unknown stage " + name);
+  }
+
+  /**
+   * Reads a config from a properties file.
+   */
+  public static PipelineConfig load(String path) throws IOException {
+    Properties properties = loadProperties(path);
+    try {
+      return fromProperties(properties);
+    } catch (IllegalArgumentException e) {
+      throw new IOException(path + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads the properties of a config file without building the config, so
+   * they can be varied first.
+   */
+  public static Properties loadProperties(String path) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(path);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    return properties;
+  }
+
+  public static PipelineConfig fromProperties(Properties properties) {
+    String[] stageNames;
+    String stages = properties.getProperty("stages");
+    if (stages != null) {
+      stageNames = stages.trim().split("\\s+");
+    } else {
+      int fetchStages = Integer.parseInt(properties.getProperty("fetch.stages", "2").trim());
+      int memoryLatency = Integer.parseInt(properties.getProperty("memory.latency", "3").trim());
+      if (fetchStages < 1 || memoryLatency < 1) {
+        throw new IllegalArgumentException("fetch.stages and memory.latency must be at least 1");
+      }
+      stageNames = new String[fetchStages + memoryLatency + 3];
+      int i = 0;
+      for (int n = 1; n <= fetchStages; n++) {
+        stageNames[i++] = "IF" + n;
+      }
+      stageNames[i++] = "ID";
+      stageNames[i++] = "EX";
+      for (int n = 1; n <= memoryLatency; n++) {
+        stageNames[i++] = "MEM" + n;
+      }
+      stageNames[i++] = "WB";
+    }
+    String execute = properties.getProperty("execute", "EX").trim();
+    String memory = properties.getProperty("memory");
+    if (memory != null) {
+      memory = memory.trim();
+    } else {
+      for (int i = 0; i < stageNames.length && memory == null; i++) {
+        if (stageNames[i].startsWith("MEM")) {
+          memory = stageNames[i];
+        }
+      }
+      if (memory == null) {
+        throw new IllegalArgumentException("No stage name starts with MEM, set memory");
+      }
+    }
+    // Default to forwarding ALU results from the stage after EX and loaded
+    // values from the stage before WB, but never from the memory stage
+    // itself; the constructor rejects bad choices
+    String afterExecute = execute;
+    int loadForward = Math.max(0, stageNames.length - 2);
+    for (int i = 0; i + 1 < stageNames.length; i++) {
+      if (stageNames[i].equals(execute)) {
+        afterExecute = stageNames[i + 1];
+      }
+      if (stageNames[i].equals(memory)) {
+        loadForward = Math.max(loadForward, i + 1);
+      }
+    }
+    PipelineConfig config = new PipelineConfig(stageNames,
+        properties.getProperty("decode", "ID").trim(),
+        execute,
+        memory,
+        properties.getProperty("forward.alu", afterExecute).trim(),
+        properties.getProperty("forward.load", stageNames[loadForward]).trim());
+    config = config.withBranchPredictor(properties.getProperty("predictor", "not-taken").trim(),
+        Integer.parseInt(properties.getProperty("predictor.entries", "1024").trim()),
+        Integer.parseInt(properties.getProperty("predictor.history", "10").trim()),
+        Integer.parseInt(properties.getProperty("btb.entries", "64").trim()));
+    String write = properties.getProperty("cache.write", "back").trim();
+    if (!write.equals("back") && !write.equals("through")) {
+      throw new IllegalArgumentException("cache.write must be back or through");
+    }
+    String missLatency = properties.getProperty("cache.miss.latency", "10").trim();
+    config = config.withIssueWidth(
+        Integer.parseInt(properties.getProperty("issue.width", "1").trim()));
+    return config.withDataCache(
+        Integer.parseInt(properties.getProperty("cache.size", "0").trim()),
+        Integer.parseInt(properties.getProperty("cache.ways", "1").trim()),
+        Integer.parseInt(properties.getProperty("cache.line", "32").trim()),
+        properties.getProperty("cache.replacement", "lru").trim(),
+        write.equals("back"),
+        Integer.parseInt(missLatency),
+        Integer.parseInt(properties.getProperty("cache.writeback.latency", missLatency).trim()));
+  }
+
+  /**
+   * Number of stages, which is also the stage number of write back.
+   */
+  public int getDepth() {
+    return labels.length - 1;
+  }
+
+  /**
+   * Returns the trace labels: "stall" followed by the stage names.
+   */
+  public String[] getLabels() {
+    return labels.clone();
+  }
+
+  public StageKind getKind(int stageNum) {
+    return kinds[stageNum];
+  }
+
+  public int getExecuteStage() {
+    return executeStage;
+  }
+
+  public int getMemoryStage() {
+    return memoryStage;
+  }
+
+  /**
+   * Cycles a memory access takes, counting the memory stage and the stages
+   * after it up to write back.
+   */
+  public int getMemoryLatency() {
+    return getDepth() - memoryStage;
+  }
+
+  public int getAluForwardStage() {
+    return aluForwardStage;
+  }
+
+  public int getLoadForwardStage() {
+    return loadForwardStage;
+  }
+
+  public String getPredictor() {
+    return predictor;
+  }
+
+  public int getPredictorEntries() {
+    return predictorEntries;
+  }
+
+  public int getHistoryBits() {
+    return historyBits;
+  }
+
+  public int getBtbEntries() {
+    return btbEntries;
+  }
+
+  public int getIssueWidth() {
+    return issueWidth;
+  }
+
+  /**
+   * Creates a new, untrained predictor of the configured kind.
+   */
+  public BranchPredictor createBranchPredictor() {
+    if (predictor.equals("not-taken")) {
+      return new StaticPredictor(false);
+    } else if (predictor.equals("taken")) {
+      return new StaticPredictor(true);
+    } else if (predictor.equals("1-bit")) {
+      return new CounterPredictor(predictorEntries, 1);
+    } else if (predictor.equals("2-bit")) {
+      return new CounterPredictor(predictorEntries, 2);
+    } else if (predictor.equals("gshare")) {
+      return new GsharePredictor(predictorEntries, historyBits);
+    } else {
+      throw new IllegalArgumentException("Unknown branch predictor " + predictor);
+    }
+  }
+
+  public BranchTargetBuffer createBranchTargetBuffer() {
+    return new BranchTargetBuffer(btbEntries);
+  }
+
+  /**
+   * Creates a new, empty data cache, or returns null if the config has none.
+   */
+  public DataCache createDataCache() {
+    if (cacheSize == 0) {
+      return null;
+    }
+    DataCache.Replacement replacement;
+    if (cacheReplacement.equals("lru")) {
+      replacement = DataCache.Replacement.LRU;
+    } else if (cacheReplacement.equals("plru")) {
+      replacement = DataCache.Replacement.PLRU;
+    } else {
+      throw new IllegalArgumentException("Unknown cache replacement " + cacheReplacement);
+    }
+    return new DataCache(cacheSize, cacheWays, cacheLineSize, replacement, cacheWriteBack,
+        cacheMissLatency, cacheWritebackLatency);
+  }
+}
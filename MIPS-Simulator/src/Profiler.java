@@ -0,0 +1,223 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Per-instruction hot-spot profile of a {@link Simulator} run, keyed by the
+ * PC of the static instruction in instruction memory.
+ *
+ * For every static instruction it counts how often it retired, the cycles
+ * its dynamic instances spent in each stage (stalled or not, wrong-path
+ * copies included), the load-use stall cycles it suffered in EX and caused
+ * as the producer EX waited on, the cycles its cache misses held the memory
+ * stage, and for branches how often they were taken and flushed the front of
+ * the pipeline. The counters are primitive arrays indexed by PC, so the
+ * profiler is cheap enough to leave on.
+ *
+ * Stage cycles are recorded as the difference from a pipeline that never
+ * holds anything: every fetched instruction is taken to spend one cycle in
+ * each stage after fetch, and the simulator only reports the extra cycles
+ * of an instruction that was held in a stage, and the stages a killed one
+ * never reached. An instruction that flows through costs nothing to
+ * profile.
+ *
+ * An instruction's cost is the cycles it spent in the pipeline. The report
+ * lists the program sorted by cost, then the loops, found from branches
+ * that jump backwards: a loop runs from the branch target to the branch.
+ */
+public class Profiler {
+  private List<Instruction> instructionMemory;
+  private String[]          labels;
+  private int               stages;         // Stage numbers run from 1 to stages - 1
+  private long[]            retired;
+  private long[]            stageCycles;    // Indexed by PC * stages + stage number, see stage()
+  private long[]            stallsSuffered;
+  private long[]            stallsCaused;
+  private long[]            memoryStalls;
+  private long[]            taken;
+  private long[]            flushes;
+  private long[]            killed;         // Instructions killed by the branch's flushes
+
+  public Profiler(List<Instruction> instructionMemory, PipelineConfig config) {
+    this.instructionMemory = instructionMemory;
+    labels = config.getLabels();
+    stages = config.getDepth() + 1;
+    int size = instructionMemory.size();
+    retired = new long[size];
+    stageCycles = new long[size * stages];
+    stallsSuffered = new long[size];
+    stallsCaused = new long[size];
+    memoryStalls = new long[size];
+    taken = new long[size];
+    flushes = new long[size];
+    killed = new long[size];
+  }
+
+  private Profiler(Profiler profiler) {
+    instructionMemory = profiler.instructionMemory;
+    labels = profiler.labels;
+    stages = profiler.stages;
+    retired = profiler.retired.clone();
+    stageCycles = profiler.stageCycles.clone();
+    stallsSuffered = profiler.stallsSuffered.clone();
+    stallsCaused = profiler.stallsCaused.clone();
+    memoryStalls = profiler.memoryStalls.clone();
+    taken = profiler.taken.clone();
+    flushes = profiler.flushes.clone();
+    killed = profiler.killed.clone();
+  }
+
+  /**
+   * Returns a copy of the profile that later updates don't change.
+   */
+  public Profiler copy() {
+    return new Profiler(this);
+  }
+
+  /**
+   * Records an instruction spending cycles in a stage. At fetch that is
+   * every cycle; after fetch it is the cycles beyond the one the profile
+   * already assumes, negative for a stage the instruction won't reach.
+   */
+  public void stage(int pc, int stageNum, long cycles) {
+    stageCycles[pc * stages + stageNum] += cycles;
+  }
+
+  /**
+   * Returns the cycles instructions at pc spent in a stage.
+   */
+  public long getStageCycles(int pc, int stageNum) {
+    long cycles = stageCycles[pc * stages + stageNum];
+    if (stageNum > 1) {
+      cycles += stageCycles[pc * stages + 1];
+    }
+    return cycles;
+  }
+
+  public void retire(int pc) {
+    retired[pc]++;
+  }
+
+  /**
+   * Records a cycle in which the instruction at pc couldn't issue because of
+   * the one at producerPC, or -1 if the producer is unknown.
+   */
+  public void loadUseStall(int pc, int producerPC) {
+    stallsSuffered[pc]++;
+    if (producerPC >= 0) {
+      stallsCaused[producerPC]++;
+    }
+  }
+
+  public void memoryStall(int pc, int cycles) {
+    memoryStalls[pc] += cycles;
+  }
+
+  /**
+   * Records a resolved branch and, if it flushed, the instructions killed.
+   */
+  public void branch(int pc, boolean branchTaken, boolean flushed, long instructionsKilled) {
+    if (branchTaken) {
+      taken[pc]++;
+    }
+    if (flushed) {
+      flushes[pc]++;
+      killed[pc] += instructionsKilled;
+    }
+  }
+
+  /**
+   * Returns the cycles the instruction at pc spent in the pipeline.
+   */
+  public long getCost(int pc) {
+    long cost = 0;
+    for (int stageNum = 1; stageNum < stages; stageNum++) {
+      cost += getStageCycles(pc, stageNum);
+    }
+    return cost;
+  }
+
+  /**
+   * Returns the PC a loop closed by the branch at pc starts at, or -1 if the
+   * instruction doesn't close a loop.
+   */
+  public int getLoopStart(int pc) {
+    Instruction instruction = instructionMemory.get(pc);
+    if ((instruction.controlBits & Instruction.BRANCH) != 0 && instruction.branchTarget <= pc) {
+      return instruction.branchTarget;
+    }
+    return -1;
+  }
+
+  /**
+   * Writes the annotated listing sorted by cost, then the loops in program
+   * order.
+   */
+  public void report(PrintStream out) {
+    int size = instructionMemory.size();
+    final long[] costs = new long[size];
+    long total = 0;
+    Integer[] order = new Integer[size];
+    for (int pc = 0; pc < size; pc++) {
+      costs[pc] = getCost(pc);
+      total += costs[pc];
+      order[pc] = pc;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        if (costs[a] != costs[b]) {
+          return (costs[a] > costs[b]) ? -1 : 1;
+        }
+        return a.compareTo(b);
+      }
+    });
+
+    out.println("PROFILE");
+    StringBuilder header = new StringBuilder(String.format("%5s %-24s %10s %6s %9s %8s",
+        "pc", "instruction", "cycles", "%", "retired", "per exec"));
+    for (int stageNum = 1; stageNum < stages; stageNum++) {
+      header.append(String.format(" %7s", labels[stageNum]));
+    }
+    header.append(String.format(" %9s %9s %9s %8s %8s %8s", "suffered", "caused", "memory",
+        "taken", "flushes", "killed"));
+    out.println(header);
+    for (int pc : order) {
+      StringBuilder line = new StringBuilder(String.format("%5d %-24s %10d %6s %9d %8s", pc,
+          getSource(pc), costs[pc], percent(costs[pc], total), retired[pc],
+          (retired[pc] > 0) ? String.format("%.2f", (double) costs[pc] / retired[pc]) : "-"));
+      for (int stageNum = 1; stageNum < stages; stageNum++) {
+        line.append(String.format(" %7d", getStageCycles(pc, stageNum)));
+      }
+      line.append(String.format(" %9d %9d %9d %8d %8d %8d", stallsSuffered[pc],
+          stallsCaused[pc], memoryStalls[pc], taken[pc], flushes[pc], killed[pc]));
+      out.println(line);
+    }
+
+    out.println("LOOPS");
+    for (int pc = 0; pc < size; pc++) {
+      int start = getLoopStart(pc);
+      if (start < 0) {
+        continue;
+      }
+      long cost = 0;
+      for (int body = start; body <= pc; body++) {
+        cost += costs[body];
+      }
+      String label = instructionMemory.get(start).label;
+      out.println("loop " + start + "-" + pc + ((label != null) ? " " + label : "")
+          + " iterations " + retired[pc] + " exits "
+          + (retired[pc] - taken[pc]) + " cycles " + cost + " (" + percent(cost, total)
+          + "%)");
+    }
+  }
+
+  private String getSource(int pc) {
+    Instruction instruction = instructionMemory.get(pc);
+    return ((instruction.label != null) ? instruction.label + ": " : "") + instruction;
+  }
+
+  private static String percent(long part, long total) {
+    return String.format("%.1f", (total > 0) ? 100.0 * part / total : 0);
+  }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Estimates the performance of a long run by sampling it, in the style of
+ * SMARTS.
+ *
+ * The program runs on a {@link FunctionalSimulator} and once every period
+ * instructions a short stretch of it is handed to a {@link Simulator} on the
+ * same machine state: the first warmup instructions fill the pipeline, the
+ * next window instructions are measured, and the pipeline then drains before
+ * functional execution carries on from where it stopped. Each sample starts
+ * at a random offset into its period so the samples can't line up with a
+ * loop and the variance between them reflects the variation in the program.
+ *
+ * CPI, load-use stalls per instruction and branch flushes per instruction are
+ * averaged over the measured windows and reported with a confidence interval
+ * from their sample variance. The final registers and memory are the same as
+ * those of a full run.
+ */
+public class SampledSimulator {
+  public static final double  Z_95 = 1.96; // Normal quantile for 95% confidence
+
+  private FunctionalSimulator functional;
+  private PipelineConfig      config;
+  private BranchPredictor     predictor;
+  private BranchTargetBuffer  btb;
+  private DataCache           dataCache;
+  private long                period;
+  private long                warmup;
+  private long                window;
+  private Random              random;
+  private Estimate            cpi;
+  private Estimate            stallRate;
+  private Estimate            flushRate;
+  private long                detailedCycles;
+  private long                detailedInstructions;
+
+  /**
+   * Running mean and variance of one metric over the samples.
+   */
+  public static class Estimate {
+    private int    count;
+    private double sum;
+    private double sumOfSquares;
+
+    public void add(double value) {
+      count++;
+      sum += value;
+      sumOfSquares += value * value;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public double getMean() {
+      return (count > 0) ? sum / count : 0;
+    }
+
+    /**
+     * Returns the half width of the confidence interval for quantile z, or NaN
+     * with fewer than two samples.
+     */
+    public double getHalfWidth(double z) {
+      if (count < 2) {
+        return Double.NaN;
+      }
+      double mean = getMean();
+      double variance = Math.max(0, (sumOfSquares - count * mean * mean) / (count - 1));
+      return z * Math.sqrt(variance / count);
+    }
+  }
+
+  public SampledSimulator(FunctionalSimulator functional, long period, long warmup, long window,
+      long seed) {
+    if (window <= 0 || warmup < 0 || period < warmup + window) {
+      throw new IllegalArgumentException("Sampling needs a window > 0 and a period of at least"
+          + " warmup + window instructions");
+    }
+    this.functional = functional;
+    setPipelineConfig(PipelineConfig.DEFAULT);
+    this.period = period;
+    this.warmup = warmup;
+    this.window = window;
+    random = new Random(seed);
+    cpi = new Estimate();
+    stallRate = new Estimate();
+    flushRate = new Estimate();
+    detailedCycles = 0;
+    detailedInstructions = 0;
+  }
+
+  public SampledSimulator(String inputPath, long period, long warmup, long window, long seed)
+      throws IOException {
+    this(new FunctionalSimulator(inputPath), period, warmup, window, seed);
+  }
+
+  /**
+   * Runs the program to the end, sampling as it goes.
+   */
+  public void run() {
+    int size = functional.getInstructionMemory().size();
+    long periodStart = 0;
+    while (true) {
+      long offset = (long) (random.nextDouble() * (period - warmup - window));
+      functional.fastForward(periodStart + offset, -1);
+      int pc = functional.getPC();
+      if (pc < 0 || pc >= size) {
+        break;
+      }
+      sample();
+      periodStart = Math.max(periodStart + period, functional.getInstructionsExecuted());
+    }
+  }
+
+  /**
+   * Simulates warmup + window instructions in detail from the current PC and
+   * records the measured window, then drains the pipeline.
+   */
+  private void sample() {
+    Simulator sim = new Simulator(functional.getInstructionMemory(),
+        functional.getMachineState(), functional.getPC(), new NullTrace(), config);
+    sim.setBranchPredictor(predictor, btb);
+    sim.setDataCache(dataCache);
+    // Keep the pipeline full behind the window so its last instructions see
+    // the same hazards as in a full run
+    sim.setFetchLimit(warmup + window + sim.getPipelineDepth());
+    PerformanceCounters counters = sim.getCounters();
+    while (counters.instructionsRetired < warmup && sim.runCycle()) {
+    }
+    long startCycles = counters.cycles;
+    long startRetired = counters.instructionsRetired;
+    long startStalls = counters.loadUseStalls;
+    long startFlushes = counters.branchFlushes;
+    while (counters.instructionsRetired < warmup + window && sim.runCycle()) {
+    }
+    long retired = counters.instructionsRetired - startRetired;
+    if (retired > 0) {
+      long cycles = counters.cycles - startCycles;
+      cpi.add((double) cycles / retired);
+      stallRate.add((double) (counters.loadUseStalls - startStalls) / retired);
+      flushRate.add((double) (counters.branchFlushes - startFlushes) / retired);
+      detailedCycles += cycles;
+      detailedInstructions += retired;
+    }
+    // Drain so the state is consistent before going back to functional mode
+    while (sim.runCycle()) {
+    }
+    functional.continueFrom(sim.getPC(), counters.instructionsRetired);
+  }
+
+  /**
+   * Sets the pipeline simulated in the detailed windows. One branch
+   * predictor, BTB and data cache is kept for all the windows, so they are
+   * warmed by every earlier window rather than starting cold each time.
+   */
+  public void setPipelineConfig(PipelineConfig config) {
+    this.config = config;
+    predictor = config.createBranchPredictor();
+    btb = config.createBranchTargetBuffer();
+    dataCache = config.createDataCache();
+  }
+
+  public Estimate getCPI() {
+    return cpi;
+  }
+
+  public Estimate getStallRate() {
+    return stallRate;
+  }
+
+  public Estimate getFlushRate() {
+    return flushRate;
+  }
+
+  public FunctionalSimulator getFunctionalSimulator() {
+    return functional;
+  }
+
+  public MachineState getMachineState() {
+    return functional.getMachineState();
+  }
+
+  /**
+   * Estimated cycles for the whole run.
+   */
+  public long getEstimatedCycles() {
+    return Math.round(cpi.getMean() * functional.getInstructionsExecuted());
+  }
+
+  public void report(PrintStream out) {
+    long instructions = functional.getInstructionsExecuted();
+    out.println("SAMPLING");
+    out.println("samples " + cpi.getCount());
+    out.println("instructions " + instructions);
+    out.println("measured instructions " + detailedInstructions + " ("
+        + String.format("%.2f", (instructions > 0) ? 100.0 * detailedInstructions / instructions
+            : 0) + "%)");
+    out.println("measured cycles " + detailedCycles);
+    reportEstimate(out, "CPI", cpi);
+    reportEstimate(out, "load-use stalls per instruction", stallRate);
+    reportEstimate(out, "branch flushes per instruction", flushRate);
+    out.println("estimated cycles " + getEstimatedCycles());
+  }
+
+  private static void reportEstimate(PrintStream out, String name, Estimate estimate) {
+    out.println(name + " " + String.format("%.4f +/- %.4f", estimate.getMean(),
+        estimate.getHalfWidth(Z_95)) + " (95% confidence)");
+  }
+}
@@ -0,0 +1,204 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Per-register record of the results still on their way to the register
+ * file, so {@link Simulator} can tell whether an operand must stall or where
+ * to forward it from in constant time, however deep the pipeline.
+ *
+ * Every register has two entries, one for the youngest ALU instruction and
+ * one for the youngest load that write it and have left EX but not yet
+ * retired. An entry holds the producer's instruction number, when it left EX
+ * and left the memory stage, and its value once known. Entries are claimed
+ * at EX, when the instruction can no longer be killed, updated when the
+ * memory stage lets it go and released at WB.
+ *
+ * Instructions move one stage a cycle after EX except that the stages up to
+ * and including the memory stage are held while it waits for the cache. The
+ * scoreboard keeps two clocks, one counting every cycle and one counting only
+ * the cycles in which the memory stage moved, so a producer's stage follows
+ * from its timestamps without tracking it cycle by cycle.
+ */
+public class Scoreboard {
+  private static final int ALU  = 0;
+  private static final int LOAD = 1;
+
+  private int              executeStage;
+  private int              memoryStage;
+  private int[]            forwardStage; // Indexed by ALU or LOAD
+  private int[]            producer;     // Instruction number, 0 if none
+  private long[]           issued;       // Front clock when it left EX
+  private long[]           leftMemory;   // Clock when it left MEM, -1 before
+  private long[]           value;
+  private long             clock;        // Cycles simulated
+  private long             frontClock;   // Cycles in which the memory stage moved
+
+  public Scoreboard(PipelineConfig config) {
+    executeStage = config.getExecuteStage();
+    memoryStage = config.getMemoryStage();
+    forwardStage = new int[] { config.getAluForwardStage(), config.getLoadForwardStage() };
+    int entries = 2 * MachineState.NUM_REGISTERS;
+    producer = new int[entries];
+    issued = new long[entries];
+    leftMemory = new long[entries];
+    value = new long[entries];
+    clock = 0;
+    frontClock = 0;
+  }
+
+  private static int entry(int regNum, int kind) {
+    return 2 * regNum + kind;
+  }
+
+  private static int kindOf(PipelineBuffer buffer) {
+    return (buffer.memToReg == 1) ? LOAD : ALU;
+  }
+
+  /**
+   * Records an instruction leaving EX, with its ALU result.
+   */
+  public void issue(PipelineBuffer buffer) {
+    if (buffer.regWrite == 1) {
+      int i = entry(buffer.writeReg, kindOf(buffer));
+      producer[i] = buffer.instructNum;
+      issued[i] = frontClock;
+      leftMemory[i] = -1;
+      value[i] = buffer.aluResult;
+    }
+  }
+
+  /**
+   * Records an instruction leaving the memory stage at the end of this
+   * cycle, with the value it loaded.
+   */
+  public void leaveMemory(PipelineBuffer buffer) {
+    if (buffer.regWrite == 1) {
+      int i = entry(buffer.writeReg, kindOf(buffer));
+      if (producer[i] == buffer.instructNum) {
+        leftMemory[i] = clock;
+        if (buffer.memToReg == 1) {
+          value[i] = buffer.memData;
+        }
+      }
+    }
+  }
+
+  /**
+   * Releases the entry of an instruction retired by WB, unless a younger
+   * instruction has claimed it.
+   */
+  public void retire(PipelineBuffer buffer) {
+    if (buffer.regWrite == 1) {
+      int i = entry(buffer.writeReg, kindOf(buffer));
+      if (producer[i] == buffer.instructNum) {
+        producer[i] = 0;
+      }
+    }
+  }
+
+  /**
+   * Moves the clocks on at the end of a cycle.
+   */
+  public void endCycle(boolean memoryHeld) {
+    clock++;
+    if (!memoryHeld) {
+      frontClock++;
+    }
+  }
+
+  /**
+   * Moves the clocks on over cycles in which the memory stage was held.
+   */
+  public void skipHeldCycles(long cycles) {
+    clock += cycles;
+  }
+
+  private int getStage(int i) {
+    if (leftMemory[i] >= 0) {
+      return memoryStage + (int) (clock - leftMemory[i]);
+    } else {
+      return executeStage + (int) (frontClock - issued[i]);
+    }
+  }
+
+  private boolean isReady(int i, int kind) {
+    return getStage(i) >= forwardStage[kind];
+  }
+
+  /**
+   * Returns true if an instruction ahead of EX writes the register and its
+   * result can't be forwarded yet.
+   */
+  public boolean isPending(int regNum) {
+    int alu = entry(regNum, ALU);
+    int load = entry(regNum, LOAD);
+    return (producer[alu] != 0 && !isReady(alu, ALU))
+        || (producer[load] != 0 && !isReady(load, LOAD));
+  }
+
+  /**
+   * Returns the instruction number of the youngest producer that makes
+   * {@link #isPending(int)} true for the register, or 0 if there is none.
+   */
+  public int getPendingProducer(int regNum) {
+    int alu = entry(regNum, ALU);
+    int load = entry(regNum, LOAD);
+    int pending = 0;
+    if (producer[alu] != 0 && !isReady(alu, ALU)) {
+      pending = producer[alu];
+    }
+    if (producer[load] != 0 && !isReady(load, LOAD)) {
+      pending = Math.max(pending, producer[load]);
+    }
+    return pending;
+  }
+
+  /**
+   * Returns the stage holding the youngest result for the register if it can
+   * be forwarded, or 0 if the register file is up to date.
+   */
+  public int getForwardStage(int regNum) {
+    int i = getYoungest(regNum);
+    return (i >= 0 && isReady(i, i & 1)) ? getStage(i) : 0;
+  }
+
+  /**
+   * Returns the youngest result for the register; only meaningful when
+   * {@link #getForwardStage(int)} isn't 0.
+   */
+  public long getValue(int regNum) {
+    return value[getYoungest(regNum)];
+  }
+
+  private int getYoungest(int regNum) {
+    int alu = entry(regNum, ALU);
+    int load = entry(regNum, LOAD);
+    if (producer[alu] == 0 && producer[load] == 0) {
+      return -1;
+    }
+    return (producer[alu] > producer[load]) ? alu : load;
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeLong(clock);
+    out.writeLong(frontClock);
+    for (int i = 0; i < producer.length; i++) {
+      out.writeInt(producer[i]);
+      out.writeLong(issued[i]);
+      out.writeLong(leftMemory[i]);
+      out.writeLong(value[i]);
+    }
+  }
+
+  public void readFrom(DataInput in) throws IOException {
+    clock = in.readLong();
+    frontClock = in.readLong();
+    for (int i = 0; i < producer.length; i++) {
+      producer[i] = in.readInt();
+      issued[i] = in.readLong();
+      leftMemory[i] = in.readLong();
+      value[i] = in.readLong();
+    }
+  }
+}
@@ -0,0 +1,71 @@
+import java.util.Arrays;
+
+/**
+ * Main memory shared by the cores of a {@link MulticoreSimulator}.
+ *
+ * The address space is interleaved over a fixed number of stripes in blocks
+ * of {@link #BLOCK_BYTES} bytes, and every stripe is a separate
+ * {@link PagedMemory}. Stripes share no structure, so different threads can
+ * write different stripes at the same time without locking; the caller
+ * makes sure a stripe is never written while it is read or written by
+ * another thread.
+ */
+public class SharedMemory {
+  public static final int BLOCK_BYTES = 64;
+  private static final int BLOCK_BITS = 6;
+
+  private PagedMemory[]    stripes;
+  private int              stripeMask;
+
+  /**
+   * @throws IllegalArgumentException unless stripeCount is a power of two
+   */
+  public SharedMemory(int stripeCount) {
+    if (stripeCount < 1 || Integer.bitCount(stripeCount) != 1) {
+      throw new IllegalArgumentException("Stripe count must be a power of two");
+    }
+    stripes = new PagedMemory[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new PagedMemory();
+    }
+    stripeMask = stripeCount - 1;
+  }
+
+  public int getStripeCount() {
+    return stripes.length;
+  }
+
+  /**
+   * Returns the stripe holding an address.
+   */
+  public int getStripe(int address) {
+    return (address >>> BLOCK_BITS) & stripeMask;
+  }
+
+  public long load(int address) {
+    return stripes[getStripe(address)].load(address);
+  }
+
+  public void store(int address, long value) {
+    stripes[getStripe(address)].store(address, value);
+  }
+
+  /**
+   * Returns every address holding a value, in ascending signed order.
+   */
+  public int[] getAddresses() {
+    int size = 0;
+    for (PagedMemory stripe : stripes) {
+      size += stripe.size();
+    }
+    int[] addresses = new int[size];
+    int count = 0;
+    for (PagedMemory stripe : stripes) {
+      int[] stripeAddresses = stripe.getAddresses();
+      System.arraycopy(stripeAddresses, 0, addresses, count, stripeAddresses.length);
+      count += stripeAddresses.length;
+    }
+    Arrays.sort(addresses);
+    return addresses;
+  }
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A program parsed once and shared by many simulations, as in a
+ * {@link DesignSweep}.
+ *
+ * The instructions are decoded into an unmodifiable list that the simulators
+ * only read. The initial registers and memory are kept in a state that is
+ * never run; every simulation gets a copy-on-write copy of it from
+ * {@link #newMachineState()}, so starting a run costs a register copy and a
+ * page table copy however much memory the program initializes. Programs with
+ * memory images aren't supported.
+ */
+public class SharedProgram {
+  private String            inputPath;
+  private List<Instruction> instructionMemory;
+  private ArrayMachineState initialState;
+
+  public SharedProgram(String inputPath) throws IOException {
+    this.inputPath = inputPath;
+    InputParser parser = new InputParser(inputPath);
+    parser.parseFile();
+    MachineState parsed = parser.getMachineState();
+    if (parsed.getImages().length > 0) {
+      throw new IOException(inputPath + ": memory images can't be shared");
+    }
+    instructionMemory = Collections.unmodifiableList(
+        new ArrayList<Instruction>(parser.getInstructionMemory()));
+    initialState = new ArrayMachineState();
+    for (int regNum = 0; regNum < MachineState.NUM_REGISTERS; regNum++) {
+      if (parsed.isRegisterSet(regNum)) {
+        initialState.setRegister(regNum, parsed.getRegister(regNum));
+      }
+    }
+    for (int address : parsed.getAddresses()) {
+      initialState.store(address, parsed.load(address));
+    }
+  }
+
+  public String getInputPath() {
+    return inputPath;
+  }
+
+  public List<Instruction> getInstructionMemory() {
+    return instructionMemory;
+  }
+
+  /**
+   * Returns a private copy of the initial registers and memory.
+   */
+  public synchronized MachineState newMachineState() {
+    return initialState.copy();
+  }
+}
@@ -0,0 +1,237 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived simulation server, so a harness running many small programs
+ * pays for JVM startup and JIT warm-up once instead of once per run.
+ *
+ * Jobs arrive one per line on an input stream, usually stdin, and run on a
+ * fixed pool of worker threads; at most a set number of jobs wait for a
+ * worker, and jobs beyond that are turned away. Every response is a single
+ * line on the output stream, so a client can match them to jobs by id:
+ *
+ * <pre>
+ * run id [options] inputPath outputPath
+ *     queued id                  accepted
+ *     busy id                    too many jobs waiting, not run
+ *     done id counters           finished
+ *     timeout id counters        stopped at the cycle limit
+ *     error id message           bad request or failed run
+ * status
+ *     status running=n queued=n completed=n
+ * quit (or end of input)
+ *     bye                        after every accepted job has finished
+ * </pre>
+ *
+ * The options are -trace none|summary|full, -binary, -pipeline config,
+ * -predictor kind, -issue-width n, -no-skip and -max-cycles n, as for a
+ * single run; -max-cycles overrides the server's default limit. The
+ * counters are space separated key=value pairs. The server writes "ready"
+ * once it accepts jobs, or "error - message" and exits if it was started with
+ * fewer than one thread or queue slot.
+ */
+public class SimulationServer {
+  private BufferedReader     in;
+  private PrintStream        out;
+  private int                threads;
+  private int                queueLimit;
+  private long               cycleLimit;
+  private ThreadPoolExecutor executor;
+  private AtomicLong         completed;
+
+  /**
+   * One run requested by a client.
+   */
+  private static class Job {
+    String         id;
+    String         inputPath;
+    String         outputPath;
+    TraceLevel     level      = TraceLevel.FULL;
+    boolean        binary;
+    PipelineConfig config     = PipelineConfig.DEFAULT;
+    long           cycleLimit;
+    boolean        eventDriven = true;
+  }
+
+  /**
+   * @param cycleLimit cycles after which a job is stopped unless it sets its
+   *          own limit
+   */
+  public SimulationServer(InputStream in, PrintStream out, int threads, int queueLimit,
+      long cycleLimit) {
+    this.in = new BufferedReader(new InputStreamReader(in));
+    this.out = out;
+    this.threads = threads;
+    this.queueLimit = queueLimit;
+    this.cycleLimit = cycleLimit;
+    completed = new AtomicLong();
+  }
+
+  /**
+   * Serves requests until quit or the end of the input, then waits for the
+   * accepted jobs to finish.
+   */
+  public void serve() throws IOException, InterruptedException {
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueLimit));
+    respond("ready threads=" + threads + " queue=" + queueLimit);
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] words = line.trim().split("\\s+");
+        if (words[0].length() == 0) {
+          continue;
+        } else if (words[0].equals("quit")) {
+          break;
+        } else if (words[0].equals("status")) {
+          respond("status running=" + executor.getActiveCount() + " queued="
+              + executor.getQueue().size() + " completed=" + completed.get());
+        } else if (words[0].equals("run") && words.length > 1) {
+          submit(words);
+        } else {
+          respond("error - unknown request: " + line.trim());
+        }
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    respond("bye");
+  }
+
+  private void submit(String[] words) {
+    final Job job;
+    try {
+      job = parseJob(words);
+    } catch (IOException e) {
+      respond("error " + words[1] + " " + e.toString());
+      return;
+    } catch (IllegalArgumentException e) {
+      respond("error " + words[1] + " " + e.toString());
+      return;
+    }
+    // Queued goes out first so it can't follow the job's result
+    synchronized (this) {
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            runJob(job);
+          }
+        });
+        respond("queued " + job.id);
+      } catch (RejectedExecutionException e) {
+        respond("busy " + job.id);
+      }
+    }
+  }
+
+  /**
+   * Parses "run id [options] inputPath outputPath".
+   */
+  private Job parseJob(String[] words) throws IOException {
+    Job job = new Job();
+    job.id = words[1];
+    job.cycleLimit = cycleLimit;
+    String predictorKind = null;
+    int issueWidth = 0;
+    int paths = 0;
+    for (int wordNum = 2; wordNum < words.length; wordNum++) {
+      String word = words[wordNum];
+      boolean hasValue = wordNum + 1 < words.length;
+      if (word.equals("-trace") && hasValue) {
+        job.level = TraceLevel.valueOf(words[++wordNum].toUpperCase());
+      } else if (word.equals("-binary")) {
+        job.binary = true;
+      } else if (word.equals("-pipeline") && hasValue) {
+        job.config = PipelineConfig.load(words[++wordNum]);
+      } else if (word.equals("-predictor") && hasValue) {
+        predictorKind = words[++wordNum];
+      } else if (word.equals("-issue-width") && hasValue) {
+        issueWidth = Integer.parseInt(words[++wordNum]);
+      } else if (word.equals("-max-cycles") && hasValue) {
+        job.cycleLimit = Long.parseLong(words[++wordNum]);
+      } else if (word.equals("-no-skip")) {
+        job.eventDriven = false;
+      } else if (word.startsWith("-")) {
+        throw new IllegalArgumentException("Unknown option: " + word);
+      } else if (paths == 0) {
+        job.inputPath = word;
+        paths++;
+      } else if (paths == 1) {
+        job.outputPath = word;
+        paths++;
+      } else {
+        throw new IllegalArgumentException("Unexpected argument: " + word);
+      }
+    }
+    if (paths != 2) {
+      throw new IllegalArgumentException("Expected inputPath outputPath");
+    }
+    if (predictorKind != null) {
+      job.config = job.config.withBranchPredictor(predictorKind,
+          job.config.getPredictorEntries(), job.config.getHistoryBits(),
+          job.config.getBtbEntries());
+    }
+    if (issueWidth != 0) {
+      job.config = job.config.withIssueWidth(issueWidth);
+    }
+    return job;
+  }
+
+  private void runJob(Job job) {
+    long start = System.nanoTime();
+    Trace trace = null;
+    try {
+      trace = Simulator.createTrace(job.outputPath, job.level, false, job.binary,
+          job.config.getLabels());
+      Simulator sim = new Simulator(job.inputPath, trace, job.config);
+      trace = null; // Closed by runSimulation
+      sim.setCycleLimit(job.cycleLimit);
+      sim.setEventDriven(job.eventDriven);
+      sim.runSimulation();
+      if (sim.getOutputError() != null) {
+        respond("error " + job.id + " " + sim.getOutputError().toString());
+        return;
+      }
+      respond((sim.isFinished() ? "done " : "timeout ") + job.id + " "
+          + formatCounters(sim.getCounters(), System.nanoTime() - start));
+    } catch (Exception e) {
+      if (trace != null) {
+        try {
+          trace.close();
+        } catch (IOException closeError) {
+          // Already reporting the first error
+        }
+      }
+      respond("error " + job.id + " " + e.toString());
+    } finally {
+      completed.incrementAndGet();
+    }
+  }
+
+  private static String formatCounters(PerformanceCounters counters, long elapsedNanos) {
+    return "cycles=" + counters.cycles
+        + " instructions=" + counters.instructionsRetired
+        + " cpi=" + String.format("%.3f", counters.getCPI())
+        + " ipc=" + String.format("%.3f", counters.getIPC())
+        + " load-use-stalls=" + counters.loadUseStalls
+        + " memory-stalls=" + counters.memoryStalls
+        + " branches=" + counters.branches
+        + " branch-flushes=" + counters.branchFlushes
+        + " forwards=" + counters.getTotalForwards()
+        + " ms=" + String.format("%.1f", elapsedNanos / 1e6);
+  }
+
+  private synchronized void respond(String line) {
+    out.println(line);
+    out.flush();
+  }
+}
@@ -1,6 +1,6 @@
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Properties;
 import java.io.*;
 
 /**
@@ -8,12 +8,21 @@ import java.io.*;
  *
  */
 public class Simulator {
-  private BufferedWriter             outputWriter;
-  private static int                 PIPELINE_DEPTH = 8;
-  private Map<Integer, Integer>      registerFile;
-  private Map<Integer, Integer>      mainMemory;
+  /* Trace labels of the default pipeline indexed by stage number, index 0 marks a stall */
+  public static final String[]       STAGE_LABELS   = PipelineConfig.DEFAULT.getLabels();
+  private PipelineConfig             config;
+  private PipelineConfig.StageKind[] stageKinds;     // Indexed by stage number
+  private int                        depth;
+  private int                        width;          // Instructions per stage
+  private int                        executeStage;
+  private int                        memoryStage;
+  private Trace                      trace;
+  private MachineState               machineState;
   private List<Instruction>          instructionMemory;
-  private LinkedList<PipelineBuffer> bufferList;
+  private PipelineBuffer[][]         latches;        // Indexed by latch, then slot
+  private int                        latchesFilled;
+  private int                        inFlight;       // Instructions in the latches
+  private PipelineBufferPool         bufferPool;
   private int                        pc;
   private int                        cc;
   private PipelineBuffer             curBuffer;
@@ -22,211 +31,385 @@ public class Simulator {
   private boolean                    stalling;
   private boolean                    killing;
   private int                        instructionsFetched;
+  private PerformanceCounters        counters;
+  private Scoreboard                 scoreboard;
+  private BranchPredictor            predictor;
+  private BranchTargetBuffer         btb;
+  private DataCache                  dataCache;      // Null for a fixed memory latency
+  private Profiler                   profiler;       // Null unless profiling
+  private long[]                     latchEntered;   // Cycle each latch's group entered its stage
+  private int                        memoryInstruction; // Last instruction to access memory
+  private int                        memoryWait;     // Cycles it is still held for
+  private boolean                    eventDriven;
+  private long                       cyclesSkipped;
+  private PrintStream                reportStream;
+  private long                       fetchLimit;
+  private long                       cycleLimit;
+  private long                       checkpointInterval;
+  private String                     checkpointPath;
+  private IOException                outputError;    // First failed trace or checkpoint write
 
-  public Simulator(String inputPath, String outputPath) {
-    InputParser parser = new InputParser(inputPath);
-    try {
-      outputWriter = new BufferedWriter(new FileWriter(outputPath));
-      parser.parseFile();
-    } catch (Exception e) {
-      System.out.println(e.toString());
+  public Simulator(String inputPath, String outputPath) throws IOException {
+    this(inputPath, openTrace(outputPath, TraceLevel.FULL, false, false));
+  }
+
+  public Simulator(String inputPath, Trace trace) throws IOException {
+    this(parse(inputPath), trace);
+  }
+
+  public Simulator(String inputPath, Trace trace, PipelineConfig config) throws IOException {
+    this(parse(inputPath), trace, config);
+  }
+
+  private Simulator(InputParser parser, Trace trace) {
+    this(parser, trace, PipelineConfig.DEFAULT);
+  }
+
+  private Simulator(InputParser parser, Trace trace, PipelineConfig config) {
+    this(parser.getInstructionMemory(), parser.getMachineState(), 0, trace, config);
+  }
+
+  public Simulator(List<Instruction> instructionMemory, MachineState machineState, int startPC,
+      Trace trace) {
+    this(instructionMemory, machineState, startPC, trace, PipelineConfig.DEFAULT);
+  }
+
+  /**
+   * Creates a simulator for an already loaded program, starting with an empty
+   * pipeline that fetches from startPC. Used to continue in detail from a
+   * state reached by {@link FunctionalSimulator#fastForward(long, int)}.
+   */
+  public Simulator(List<Instruction> instructionMemory, MachineState machineState, int startPC,
+      Trace trace, PipelineConfig config) {
+    this.config = config;
+    depth = config.getDepth();
+    stageKinds = new PipelineConfig.StageKind[depth + 1];
+    for (int stageNum = 1; stageNum <= depth; stageNum++) {
+      stageKinds[stageNum] = config.getKind(stageNum);
     }
-    registerFile = parser.getRegisterFile();
-    mainMemory = parser.getMainMemory();
-    instructionMemory = parser.getInstructionMemory();
-    bufferList = new LinkedList<PipelineBuffer>();
+    executeStage = config.getExecuteStage();
+    memoryStage = config.getMemoryStage();
+    this.trace = trace;
+    this.machineState = machineState;
+    this.instructionMemory = instructionMemory;
+    width = config.getIssueWidth();
+    latches = new PipelineBuffer[depth - 1][width];
+    latchesFilled = 0;
+    inFlight = 0;
+    bufferPool = new PipelineBufferPool(depth * width);
     endOfInstructionMem = false;
     finishedLastCycle = false;
     stalling = false;
     killing = false;
-    pc = 0;
+    pc = startPC;
     cc = 1;
     instructionsFetched = 0;
+    counters = new PerformanceCounters(config.getLabels(), width);
+    scoreboard = new Scoreboard(config);
+    predictor = config.createBranchPredictor();
+    btb = config.createBranchTargetBuffer();
+    dataCache = config.createDataCache();
+    profiler = null;
+    memoryInstruction = 0;
+    memoryWait = 0;
+    eventDriven = true;
+    cyclesSkipped = 0;
+    reportStream = null;
+    fetchLimit = Long.MAX_VALUE;
+    cycleLimit = Long.MAX_VALUE;
+    checkpointInterval = 0;
+    checkpointPath = null;
+    outputError = null;
   }
-  
-  private void writeOutput(String str, boolean newLine) {
+
+  private static InputParser parse(String inputPath) throws IOException {
+    InputParser parser = new InputParser(inputPath);
+    parser.parseFile();
+    return parser;
+  }
+
+  /**
+   * Opens a text or binary trace of the given level at outputPath. Falls back
+   * to a {@link NullTrace} if the file can't be opened.
+   */
+  public static Trace openTrace(String outputPath, TraceLevel level, boolean echo,
+      boolean binary) {
+    return openTrace(outputPath, level, echo, binary, STAGE_LABELS);
+  }
+
+  /**
+   * Opens a trace labelled with the stages of a {@link PipelineConfig}.
+   * Falls back to a {@link NullTrace} if the file can't be opened.
+   */
+  public static Trace openTrace(String outputPath, TraceLevel level, boolean echo,
+      boolean binary, String[] labels) {
     try {
-      if (str != null) {
-        outputWriter.write(str);
-        System.out.print(str);
-      }
-      if (newLine) {
-        outputWriter.newLine();
-        System.out.println();
-      }
+      return createTrace(outputPath, level, echo, binary, labels);
     } catch (IOException e) {
-      System.out.println("ERROR: writing to file" + e.toString());
+      System.out.println(e.toString());
+      return new NullTrace();
     }
   }
-  
-  private void writeOutput(String str){
-    writeOutput(str, false);
-  }
 
-  private void WB() {
-    if ((curBuffer = getBuffer(8)) != null) {
-      writeOutput(" I" + curBuffer.instructNum + "-WB");
-      bufferList.removeLast();
-      if (curBuffer.memToReg == 1) {
-        registerFile.put(curBuffer.writeReg, curBuffer.memData);
-      } else if (curBuffer.memToReg == 0) {
-        registerFile.put(curBuffer.writeReg, curBuffer.aluResult);
-      }
-    } else if (bufferList.size() >= 7) {
-      bufferList.removeLast();
+  /**
+   * Creates a text or binary trace like {@link #openTrace}, for callers that
+   * report a file that can't be opened themselves.
+   */
+  public static Trace createTrace(String outputPath, TraceLevel level, boolean echo,
+      boolean binary, String[] labels) throws IOException {
+    if (binary) {
+      return new BinaryTrace(outputPath, level, labels);
     } else {
-      finishedLastCycle = endOfInstructionMem ? true : false;
+      return new TextTrace(outputPath, level, echo, labels);
     }
   }
 
-  private void MEM3() {
-    if ((curBuffer = getBuffer(7)) != null) {
-      writeOutput(" I" + curBuffer.instructNum + "-MEM3");
-      // NOP
+  /**
+   * Runs every stage once, from write back to fetch so each stage sees the
+   * latches as the stage ahead of it left them in the previous cycle.
+   */
+  private void runStages() {
+    for (int stageNum = depth; stageNum >= 1; stageNum--) {
+      switch (stageKinds[stageNum]) {
+      case WRITEBACK:
+        WB(stageNum);
+        break;
+      case MEMORY:
+        MEM(stageNum);
+        break;
+      case BACK:
+        passThrough(stageNum);
+        break;
+      case EXECUTE:
+        EX(stageNum);
+        break;
+      case DECODE:
+        ID(stageNum);
+        break;
+      case FRONT:
+        holdOrPass(stageNum);
+        break;
+      case FETCH:
+        IF1();
+        break;
+      default:
+        break;
+      }
     }
   }
 
-  private void MEM2() {
-    if ((curBuffer = getBuffer(6)) != null) {
-      writeOutput(" I" + curBuffer.instructNum + "-MEM2");
-      // NOP
+  private void WB(int stageNum) {
+    PipelineBuffer[] group = getGroup(stageNum);
+    if (group[0] != null) {
+      // Retire in program order so the youngest of two writers wins
+      for (int slot = 0; slot < width && (curBuffer = group[slot]) != null; slot++) {
+        trace.stage(curBuffer.instructNum, stageNum);
+        counters.instructionsRetired++;
+        scoreboard.retire(curBuffer);
+        if (profiler != null) {
+          profiler.retire(curBuffer.curPC);
+        }
+        if (curBuffer.regWrite == 1) {
+          if (curBuffer.memToReg == 1) {
+            machineState.setRegister(curBuffer.writeReg, curBuffer.memData);
+          } else {
+            machineState.setRegister(curBuffer.writeReg, curBuffer.aluResult);
+          }
+        }
+      }
+    } else if (latchesFilled < latches.length) {
+      finishedLastCycle = endOfInstructionMem ? true : false;
     }
   }
 
-  private void MEM1() {
-    if ((curBuffer = getBuffer(5)) != null) {
-      writeOutput(" I" + curBuffer.instructNum + "-MEM1");
-      int address = curBuffer.aluResult;
-      if (curBuffer.memRead == 1) {
-        int readData = mainMemory.get(address);
-        curBuffer.memData = readData;
-      } else if (curBuffer.memWrite == 1) {
-        int writeData = curBuffer.readData2;
-        mainMemory.put(address, writeData);
+  /**
+   * Memory access. The stages after it up to write back model the rest of
+   * the memory latency. With a data cache, a miss holds the group here for
+   * the extra cycles the cache reports and stalls everything behind it. The
+   * misses of one group are served one after the other.
+   */
+  private void MEM(int stageNum) {
+    PipelineBuffer[] group = getGroup(stageNum);
+    if (group[0] != null) {
+      if (group[0].instructNum != memoryInstruction) {
+        memoryInstruction = group[0].instructNum;
+        for (int slot = 0; slot < width && (curBuffer = group[slot]) != null; slot++) {
+          trace.stage(curBuffer.instructNum, stageNum);
+          int address = (int) curBuffer.aluResult;
+          if (curBuffer.memRead == 1) {
+            counters.memoryReads++;
+            long readData = machineState.load(address);
+            curBuffer.memData = readData;
+            if (dataCache != null) {
+              waitForMemory(dataCache.access(address, false));
+            }
+          } else if (curBuffer.memWrite == 1) {
+            counters.memoryWrites++;
+            long writeData = curBuffer.readData2;
+            machineState.store(address, writeData);
+            if (dataCache != null) {
+              waitForMemory(dataCache.access(address, true));
+            }
+          }
+        }
+      } else {
+        // Still waiting for the cache
+        traceGroup(group, Trace.STALL);
+      }
+      if (memoryWait > 0) {
+        memoryWait--;
+        stalling = true;
+        counters.memoryStalls++;
+        // Hold MEM and everything behind it, let the stages after it drain
+        advance(stageNum - 1);
+      } else {
+        for (int slot = 0; slot < width && group[slot] != null; slot++) {
+          scoreboard.leaveMemory(group[slot]);
+        }
       }
     }
   }
 
-  private void EX() {
-    if ((curBuffer = getBuffer(4)) != null) {
-      // Check if a stall is required
-      writeOutput(" I" + curBuffer.instructNum);
-      if (shouldStall()) {
-        stalling = true;
-        writeOutput("-stall");
-        bufferList.add(3, null);
+  /**
+   * A stage after EX that does no work, such as MEM2 and MEM3.
+   */
+  private void passThrough(int stageNum) {
+    traceGroup(getGroup(stageNum), stageNum);
+    // NOP
+  }
+
+  /**
+   * Execute. Issues the group in EX in order: each instruction issues unless
+   * it waits on a result from a stage ahead that can't be forwarded yet, or
+   * on an older instruction of its own group. The instructions before the
+   * first that can't issue go on to the next stage and the rest stay in EX,
+   * holding everything behind them.
+   */
+  private void EX(int stageNum) {
+    PipelineBuffer[] group = getGroup(stageNum);
+    if (group[0] == null) {
+      counters.issueCycles[0]++;
+      return;
+    }
+    if (stalling) {
+      // Held behind a memory stall
+      counters.issueCycles[0]++;
+      traceGroup(group, Trace.STALL);
+      return;
+    }
+    int size = 0;
+    int issued = -1;
+    for (; size < width && group[size] != null; size++) {
+      if (issued < 0 && !canIssue(group, size)) {
+        issued = size;
+      }
+    }
+    if (issued < 0) {
+      issued = size;
+    }
+    counters.issueCycles[issued]++;
+    for (int slot = 0; slot < size; slot++) {
+      curBuffer = group[slot];
+      if (slot < issued) {
+        trace.stage(curBuffer.instructNum, stageNum);
+        execute(curBuffer);
       } else {
-        writeOutput("-EX");
-        // Read register data
-        if (curBuffer.getData1) {
-          curBuffer.readData1 = getReadData(curBuffer.readReg1);
-        }
-        if (curBuffer.getData2) {
-          curBuffer.readData2 = getReadData(curBuffer.readReg2);
-        }
-        int operand1 = curBuffer.readData1;
-        int operand2;
-        if (curBuffer.aluSrc == 1) {
-          operand2 = curBuffer.readData2;
-        } else {
-          operand2 = curBuffer.immediate;
+        trace.stage(curBuffer.instructNum, Trace.STALL);
+      }
+    }
+    if (issued < size) {
+      stalling = true;
+      counters.loadUseStalls++;
+      if (profiler != null) {
+        profiler.loadUseStall(group[issued].curPC, getStallCause(group, issued));
+      }
+      // Hold EX and everything behind it, let the stages after it drain and
+      // take the issued instructions with them
+      PipelineBuffer[] next = advance(stageNum - 1);
+      if (profiler != null) {
+        long extra = counters.cycles - latchEntered[stageNum - 2];
+        for (int slot = 0; slot < issued && extra != 0; slot++) {
+          profiler.stage(group[slot].curPC, stageNum, extra);
         }
-
-        switch (curBuffer.opcode) {
-        case DADD:
-          curBuffer.aluResult = operand1 + operand2;
-          break;
-        case SUB:
-          curBuffer.aluResult = operand1 - operand2;
-          break;
-        case LD:
-          curBuffer.aluResult = operand1 + operand2;
-          break;
-        case SD:
-          curBuffer.aluResult = operand1 + operand2;
-          break;
-        case BNEZ:
-          curBuffer.zero = (operand1 == 0) ? true : false;
-          break;
-        default:
-          writeOutput("NOT VALID OPCODE");
+      }
+      for (int slot = 0; slot < size; slot++) {
+        if (slot < issued) {
+          next[slot] = group[slot];
+        } else {
+          group[slot - issued] = group[slot];
         }
       }
+      for (int slot = size - issued; slot < size; slot++) {
+        group[slot] = null;
+      }
     }
   }
 
+  /**
+   * Reads the operands of an instruction that issues and computes its ALU
+   * result with the ALU function from its {@link Instruction.Opcode} row.
+   * Loads and stores compute their address and branches the value their
+   * condition tests for zero.
+   */
+  private void execute(PipelineBuffer buffer) {
+    // Read register data
+    if (buffer.getData1) {
+      buffer.readData1 = getReadData(buffer.readReg1);
+    }
+    if (buffer.getData2) {
+      buffer.readData2 = getReadData(buffer.readReg2);
+    }
+    long operand1 = buffer.readData1;
+    long operand2;
+    if (buffer.aluSrc == 1) {
+      operand2 = buffer.readData2;
+    } else {
+      operand2 = buffer.immediate;
+    }
+    buffer.aluResult = Instruction.alu(buffer.opcode.aluFunction, operand1, operand2);
+    buffer.zero = buffer.aluResult == 0;
+    scoreboard.issue(buffer);
+  }
+
   /**
    * Instruction Decode.
    *
-   * Decodes the instruction in the pipeline buffer.
-   * Calculate the target address of a Branch.
-   * Check if stall is required.
-   */
-  private void ID() {
-    if ((curBuffer = getBuffer(3)) != null) {
-      writeOutput(" I" + curBuffer.instructNum);
-      if (!stalling) {
-        Instruction curInstr = curBuffer.instr;
-        // Set control bits based on op code
-        curBuffer.setControlSignals();
-        // Decode read1
-        if (curInstr.rs != null) {
-          // If Source is a register
-          if (curInstr.rs.charAt(0) == 'R') {
-            int regNum = Integer.valueOf(curInstr.rs.substring(1));
-            curBuffer.readReg1 = regNum;
-            curBuffer.getData1 = true;
-          } else {
-            writeOutput(curInstr.rd + " is not a register!");
-          }
-        }
-        // Decode read2 if rt not the destination register
-        if (curInstr.rt != null) {
-          // If Source is a register
-          if (curInstr.rt.charAt(0) == 'R') {
-            int regNum = Integer.valueOf(curInstr.rt.substring(1));
-            curBuffer.readReg2 = regNum;
-            if (curBuffer.memRead != 1) {
-              curBuffer.getData2 = true;
-            }
-          } else if (curInstr.rt.charAt(0) == '#') {
-            curBuffer.immediate = Integer.valueOf(curInstr.rt.substring(1));
-            curBuffer.aluSrc = 0;
-          } else {
-            writeOutput(curInstr.rd + " is not a register!");
-          }
-        }
-        // Decode writeReg
-        if (curBuffer.regDst == 0 && curInstr.rd != null) {
-          curBuffer.writeReg = Integer.valueOf(curInstr.rd.substring(1)).intValue();
-        } else if (curBuffer.regDst == 1 && curInstr.rt != null) {
-          curBuffer.writeReg = Integer.valueOf(curInstr.rt.substring(1));
-        }
-        // Decode immediate
-        if (curInstr.immediate != null) {
-          curBuffer.immediate = curInstr.immediate;
-          // Calculate the address of next instruction for BNEZ
-          curBuffer.branchAddr = curBuffer.curPC + curBuffer.immediate;
-        }
-        writeOutput("-ID");
-      } else {
-        writeOutput("-stall");
+   * Decodes the instructions in the pipeline buffers.
+   * Operands, immediates and branch targets are decoded once by
+   * {@link InputParser}, so this only copies them into the buffers.
+   */
+  private void ID(int stageNum) {
+    PipelineBuffer[] group = getGroup(stageNum);
+    if (!stalling) {
+      for (int slot = 0; slot < width && (curBuffer = group[slot]) != null; slot++) {
+        // Copy the operands and control bits decoded at load time
+        curBuffer.decode();
+        trace.stage(curBuffer.instructNum, stageNum);
       }
+    } else {
+      traceGroup(group, Trace.STALL);
     }
   }
 
   /**
-   * Instruction Fetch 2.
-   * Does nothing
+   * A stage before EX that does no work, such as IF2. Held in place while EX
+   * stalls.
    */
-  private void IF2() {
-    if ((curBuffer = getBuffer(2)) != null) {
-      if (stalling) {
-        writeOutput(" I" + curBuffer.instructNum + "-stall");
-      } else {
-        writeOutput(" I" + curBuffer.instructNum + "-IF2");
-        // NOP
-      }
+  private void holdOrPass(int stageNum) {
+    if (stalling) {
+      traceGroup(getGroup(stageNum), Trace.STALL);
+    } else {
+      traceGroup(getGroup(stageNum), stageNum);
+      // NOP
+    }
+  }
+
+  /**
+   * Traces every instruction of a group with the same event.
+   */
+  private void traceGroup(PipelineBuffer[] group, int event) {
+    for (int slot = 0; slot < width && group[slot] != null; slot++) {
+      trace.stage(group[slot].instructNum, event);
     }
   }
 
@@ -234,170 +417,745 @@ public class Simulator {
    * Instruction Fetch 1.
    * 
    * Updates the program counter if branch taken and kills existing instructions.
-   * Gets the next instruction from {@link instructionMemory} and creates the
-   * PipelineBuffer. Advances the program counter to the next value.
+   * Gets up to the issue width of consecutive instructions from
+   * {@link instructionMemory} and creates their PipelineBuffers. A group ends
+   * after a branch, so a branch is always the youngest instruction of its
+   * group. Advances the program counter to the next value.
    */
   private void IF1() {
     updatePC();
-    int instrNum = instructionsFetched + 1;
-    Instruction curInstruct = (pc < instructionMemory.size()) ? instructionMemory.get(pc) : null;
-    if (curInstruct != null && !killing && !stalling) {
-      if (!stalling) {
-        writeOutput(" I" + instrNum + "-IF1");
-        curBuffer = new PipelineBuffer(curInstruct, instrNum);
+    if (!stalling) {
+      PipelineBuffer[] group = advance(0);
+      int count = 0;
+      while (!killing && count < width) {
+        int instrNum = instructionsFetched + 1;
+        Instruction curInstruct = (pc < instructionMemory.size()
+            && instructionsFetched < fetchLimit) ? instructionMemory.get(pc) : null;
+        if (curInstruct == null) {
+          break;
+        }
+        trace.stage(instrNum, 1);
+        if (profiler != null) {
+          profiler.stage(pc, 1, 1);
+        }
+        curBuffer = bufferPool.acquire(curInstruct, instrNum);
         curBuffer.curPC = pc;
-        pc += 1; // Increment PC
-        bufferList.addFirst(curBuffer);
+        boolean isBranch = (curInstruct.controlBits & Instruction.BRANCH) != 0;
+        // Follow a predicted-taken branch if the BTB knows where it goes
+        int target = -1;
+        if (isBranch) {
+          curBuffer.predictorIndex = predictor.index(pc);
+          target = btb.lookup(pc);
+        }
+        if (target >= 0 && predictor.predict(curBuffer.predictorIndex)) {
+          curBuffer.predictedTaken = true;
+          curBuffer.predictedPC = target;
+          pc = target;
+        } else {
+          pc += 1; // Increment PC
+        }
+        group[count++] = curBuffer;
+        inFlight++;
         instructionsFetched++;
-      } else {
-        writeOutput(" I" + instrNum + "-stall");
+        counters.instructionsFetched++;
+        if (isBranch) {
+          break;
+        }
+      }
+      if (count == 0) {
+        endOfInstructionMem = true;
       }
-    } else if (!stalling) {
-      bufferList.addFirst(null);
-      endOfInstructionMem = true;
     }
     stalling = false;
     killing = false;
   }
 
   /**
-   * Sets PC to the value of ex.branchAddr and kills instructions if branch is taken. Does nothing if branch not taken. 
+   * Resolves the branch in EX, if any. Trains the predictor and BTB and, when
+   * fetch went the wrong way, kills the instructions behind the branch and
+   * sets PC to where it should have gone. Does nothing while the branch is
+   * stalled in EX and hasn't been resolved yet.
    */
   private void updatePC() {
-    PipelineBuffer exBuff = getBuffer(4);
-    if (exBuff != null && exBuff.branchTaken()) {
-      killBadInstructions();
-      pc = exBuff.branchAddr;
+    if (stalling) {
+      return;
+    }
+    PipelineBuffer[] group = getGroup(executeStage);
+    for (int slot = 0; slot < width && group[slot] != null; slot++) {
+      PipelineBuffer exBuff = group[slot];
+      if (exBuff.branch == 1) {
+        boolean taken = exBuff.branchTaken();
+        // A wrong direction redirects fetch even when both paths lead to the
+        // same instruction
+        boolean mispredicted = (taken != exBuff.predictedTaken)
+            || (taken && exBuff.predictedPC != exBuff.branchAddr);
+        counters.branches++;
+        predictor.update(exBuff.predictorIndex, taken);
+        if (taken) {
+          counters.branchesTaken++;
+          btb.update(exBuff.curPC, exBuff.branchAddr);
+        }
+        long killed = counters.instructionsKilled;
+        if (mispredicted) {
+          killBadInstructions();
+          pc = taken ? exBuff.branchAddr : exBuff.curPC + 1;
+        }
+        if (profiler != null) {
+          profiler.branch(exBuff.curPC, taken, mispredicted,
+              counters.instructionsKilled - killed);
+        }
+      }
     }
   }
 
   /**
-   * Kills instructions in the IF2 and ID stages.
+   * Kills instructions in the stages between fetch and EX.
    */
   private void killBadInstructions() {
     killing = true;
-    bufferList.set(0, null);
-    bufferList.set(1, null);
+    counters.branchFlushes++;
+    for (int i = 0; i < executeStage - 2; i++) {
+      PipelineBuffer[] group = latches[i];
+      for (int slot = 0; slot < width && group[slot] != null; slot++) {
+        if (profiler != null) {
+          profileUnfinished(group[slot], i, counters.cycles + 1);
+        }
+        counters.instructionsKilled++;
+        inFlight--;
+        bufferPool.release(group[slot]);
+        group[slot] = null;
+      }
+    }
   }
 
   /**
-   * Returns the {@link PipelineBuffer} for a stage in the pipeline.
+   * Advances every latch from index first onwards by one stage and returns
+   * the emptied latch now at first, for the caller to fill. The group leaving
+   * the last latch has completed WB and goes back to the pool, and its array
+   * is reused for the new latch. Latches ahead of first are held in place.
    */
-  private PipelineBuffer getBuffer(int stageNum) {
-    if (bufferList.size() >= stageNum - 1) {
-      return bufferList.get(stageNum - 2);
+  private PipelineBuffer[] advance(int first) {
+    if (profiler != null) {
+      profileAdvance(first);
+    }
+    PipelineBuffer[] group = latches[latches.length - 1];
+    for (int slot = 0; slot < width && group[slot] != null; slot++) {
+      inFlight--;
+      bufferPool.release(group[slot]);
+      group[slot] = null;
+    }
+    System.arraycopy(latches, first, latches, first + 1, latches.length - first - 1);
+    latches[first] = group;
+    if (latchesFilled < latches.length) {
+      latchesFilled++;
+    }
+    return group;
+  }
+
+  /**
+   * Returns the group of {@link PipelineBuffer}s for a stage in the pipeline,
+   * oldest first and padded with nulls. Stage 1 (IF1) has no latch; the group
+   * entering stage n is latches[n - 2].
+   */
+  private PipelineBuffer[] getGroup(int stageNum) {
+    return latches[stageNum - 2];
+  }
+
+  /**
+   * Gets data for a given regsiter in the EX stage.
+   * Forwards the result of the youngest instruction between EX and WB that
+   * writes the register, as found by the {@link Scoreboard}. Otherwise reads
+   * from register file.
+   */
+  private long getReadData(int regNum) {
+    int source = scoreboard.getForwardStage(regNum);
+    if (source > 0) {
+      counters.forwards[source]++;
+      return scoreboard.getValue(regNum);
     } else {
-      return null;
+      counters.registerReads++;
+      return machineState.getRegister(regNum);
     }
   }
 
   /**
-   * Gets data for a given regsiter in the ID stage.
-   * Handles forwards from EX and MEM.
-   * Otherwise reads from register file.
+   * Determines if the instruction in a slot of the EX group can issue.
+   * It can't if either readReg is written by an older instruction of the
+   * same group, or by an instruction ahead of it whose result can't be
+   * forwarded yet.
    */
-  private Integer getReadData(int regNum) {
-    Integer data = null;
-    // For every instruction in EX through WB
-    for (int i = PIPELINE_DEPTH - 1; i > 4; i--) {
-      PipelineBuffer forwardBuff = getBuffer(i);
-      // If instruct will write into one of id's operands
-      if (forwardBuff != null && forwardBuff.regWrite == 1 && forwardBuff.writeReg == regNum) {
-        switch (forwardBuff.opcode) {
-        case DADD:
-          // Value from EX stage
-          data = (i > 3) ? forwardBuff.aluResult : null;
-          break;
-        case SUB:
-          // Value from EX stage
-          data = (i > 3) ? forwardBuff.aluResult : null;
-          break;
-        case LD:
-          // Value from MEM2 stage
-          data = (i > 5) ? forwardBuff.memData : null;
-          break;
-        default:
-          break;
-        }
+  private boolean canIssue(PipelineBuffer[] exGroup, int exSlot) {
+    PipelineBuffer exBuff = exGroup[exSlot];
+    for (int slot = 0; slot < exSlot; slot++) {
+      if (reads(exBuff, exGroup[slot])) {
+        return false;
       }
     }
-    if (data != null) {
-      return data;
-    } else {
-      return registerFile.get(regNum);
+    return !shouldStall(exBuff);
+  }
+
+  /**
+   * Determines if stall is required in the EX stage.
+   * Stall if either readReg is written by an instruction ahead of it whose
+   * result can't be forwarded yet.
+   */
+  private boolean shouldStall(PipelineBuffer exBuff) {
+    return scoreboard.isPending(exBuff.readReg1) || scoreboard.isPending(exBuff.readReg2);
+  }
+
+  /**
+   * Returns true if reader names a register that writer writes.
+   */
+  private static boolean reads(PipelineBuffer reader, PipelineBuffer writer) {
+    return writer.regWrite == 1
+        && (reader.readReg1 == writer.writeReg || reader.readReg2 == writer.writeReg);
+  }
+
+  /**
+   * Adds the extra cycles a cache access takes to the memory stage's wait,
+   * and to the profile of the instruction making it.
+   */
+  private void waitForMemory(int cycles) {
+    memoryWait += cycles;
+    if (profiler != null && cycles > 0) {
+      profiler.memoryStall(curBuffer.curPC, cycles);
     }
   }
 
   /**
-   * Determines if stall is required in the ID stage.
-   * Stall if either rd.readReg is the writeReg of a instruction ahead of it in the pipeline.
+   * Returns the PC of the instruction the one in a slot of the EX group
+   * waits on: the youngest older instruction of its group that it reads
+   * from, or else the youngest producer ahead of EX whose result isn't
+   * ready. Returns -1 if there is none.
    */
-  private boolean shouldStall() {
-    boolean stall = false;
-    PipelineBuffer exBuff = getBuffer(4);
-    // For every instruction in EX through WB
-    for (int i = 5; i < 7; i++) {
-      PipelineBuffer forwardBuff = getBuffer(i);
-      if (forwardBuff != null) {
-        if (exBuff.readReg1 == forwardBuff.writeReg && forwardBuff.opcode == Instruction.Opcode.LD) {
-          stall = true;
-        } else if (exBuff.readReg2 == forwardBuff.writeReg
-            && forwardBuff.opcode == Instruction.Opcode.LD) {
-          stall = true;
+  private int getStallCause(PipelineBuffer[] exGroup, int exSlot) {
+    PipelineBuffer exBuff = exGroup[exSlot];
+    for (int slot = exSlot - 1; slot >= 0; slot--) {
+      if (reads(exBuff, exGroup[slot])) {
+        return exGroup[slot].curPC;
+      }
+    }
+    int producer = Math.max(scoreboard.getPendingProducer(exBuff.readReg1),
+        scoreboard.getPendingProducer(exBuff.readReg2));
+    for (int i = executeStage - 1; i < latches.length; i++) {
+      for (int slot = 0; slot < width && latches[i][slot] != null; slot++) {
+        if (latches[i][slot].instructNum == producer) {
+          return latches[i][slot].curPC;
         }
       }
     }
-    return stall;
+    return -1;
+  }
+
+  /**
+   * Profiles the groups leaving the latches from first onwards at the end of
+   * this cycle, all of which enter their next stage in the next cycle. The
+   * profile already counts one cycle per stage, so only a group that was
+   * held has anything to add, and no instruction is visited in a cycle it
+   * flows through.
+   */
+  private void profileAdvance(int first) {
+    long next = counters.cycles + 1;
+    for (int i = first; i < latches.length; i++) {
+      long extra = next - latchEntered[i] - 1;
+      PipelineBuffer[] group = latches[i];
+      for (int slot = 0; extra != 0 && slot < width && group[slot] != null; slot++) {
+        profiler.stage(group[slot].curPC, i + 2, extra);
+      }
+      latchEntered[i] = next;
+    }
+  }
+
+  /**
+   * Profiles an instruction in latch i that stops before write back, killed
+   * or still in flight, as having been in its stage until cycle end: the
+   * profile counted one cycle there and in every stage after it.
+   */
+  private void profileUnfinished(PipelineBuffer buffer, int i, long end) {
+    profiler.stage(buffer.curPC, i + 2, end - latchEntered[i] - 1);
+    for (int stageNum = i + 3; stageNum <= depth; stageNum++) {
+      profiler.stage(buffer.curPC, stageNum, -1);
+    }
   }
 
   /**
    * Determines if simulation loop should continue.
-   * Returns false if all buffers in list are null.
+   * Returns false once the latches have filled and all of them are empty.
    */
   private boolean keepGoing() {
-    if (bufferList.size() < 7) {
-      return true;
+    return latchesFilled < latches.length || inFlight > 0;
+  }
+
+  /**
+   * Skips ahead over cycles that only wait for a cache miss: the memory stage
+   * is held, the stages after it have drained, and every remaining cycle of
+   * the wait would trace the same events and change nothing but the
+   * counters. Those cycles are traced and counted without running the
+   * stages, in O(1) when the trace doesn't record stage events. Stops short
+   * of the next auto-checkpoint. Returns the number of cycles skipped.
+   */
+  public long skipIdleCycles() {
+    if (memoryWait == 0 || !keepGoing()) {
+      return 0;
+    }
+    for (int stageNum = memoryStage + 1; stageNum <= depth; stageNum++) {
+      if (getGroup(stageNum)[0] != null) {
+        return 0;
+      }
+    }
+    long skip = memoryWait;
+    if (checkpointInterval > 0) {
+      skip = Math.min(skip, checkpointInterval - 1 - counters.cycles % checkpointInterval);
+    }
+    skip = Math.min(skip, cycleLimit - counters.cycles);
+    if (skip <= 0) {
+      return 0;
+    }
+    if (trace.tracesCycles()) {
+      for (long n = 0; n < skip; n++) {
+        trace.beginCycle(cc + (int) n);
+        traceHeldStages();
+        trace.endCycle();
+      }
     } else {
-      boolean result = false;
-      for (PipelineBuffer buffer : bufferList) {
-        if (buffer != null)
-          result = true;
+      trace.beginCycle(cc + (int) skip - 1);
+      trace.endCycle();
+    }
+    // WB sees the latches filling up as the memory stage advances the empty
+    // ones behind it
+    if (latchesFilled < latches.length) {
+      finishedLastCycle = endOfInstructionMem ? true : false;
+      latchesFilled = (int) Math.min(latches.length, latchesFilled + skip);
+    }
+    cc += skip;
+    scoreboard.skipHeldCycles(skip);
+    memoryWait -= skip;
+    counters.cycles += skip;
+    counters.memoryStalls += skip;
+    counters.issueCycles[0] += skip;
+    cyclesSkipped += skip;
+    return skip;
+  }
+
+  /**
+   * Traces the events of a cycle spent waiting on the memory stage, in the
+   * order {@link #runStages()} produces them.
+   */
+  private void traceHeldStages() {
+    for (int stageNum = memoryStage; stageNum > 1; stageNum--) {
+      if (stageKinds[stageNum] == PipelineConfig.StageKind.BACK) {
+        // Stages between EX and MEM trace their own label while held
+        traceGroup(getGroup(stageNum), stageNum);
+      } else {
+        traceGroup(getGroup(stageNum), Trace.STALL);
       }
-      return result;
     }
   }
 
+  /**
+   * Turns skipping idle cycles in {@link #runSimulation()} on (the default)
+   * or off. The trace and counters are the same either way.
+   */
+  public void setEventDriven(boolean eventDriven) {
+    this.eventDriven = eventDriven;
+  }
+
+  /**
+   * Cycles {@link #skipIdleCycles()} has skipped so far.
+   */
+  public long getCyclesSkipped() {
+    return cyclesSkipped;
+  }
+
   public void printResults() {
-    writeOutput("REGISTERS", true);
-    for (Integer regNum : registerFile.keySet()) {
-      writeOutput("R" + regNum + " " + registerFile.get(regNum), true);
+    printResults(machineState, trace);
+  }
+
+  /**
+   * Writes the registers and memory of a machine state to a trace.
+   */
+  public static void printResults(MachineState machineState, Trace trace) {
+    trace.beginRegisters();
+    for (int regNum = 0; regNum < MachineState.NUM_REGISTERS; regNum++) {
+      if (machineState.isRegisterSet(regNum)) {
+        trace.register(regNum, machineState.getRegister(regNum));
+      }
     }
-    writeOutput("MEMORY", true);
-    for (Integer address : mainMemory.keySet()) {
-      writeOutput(address + " " + mainMemory.get(address), true);
+    trace.beginMemory();
+    for (int address : machineState.getAddresses()) {
+      trace.memory(address, machineState.load(address));
     }
   }
 
-  public void runSimulation() {
-    while (keepGoing()) {
-      writeOutput("c#" + cc);
-      WB();
-      MEM3();
-      MEM2();
-      MEM1();
-      EX();
-      ID();
-      IF2();
-      IF1();
-      cc++;
-      writeOutput(null, true);
+  public MachineState getMachineState() {
+    return machineState;
+  }
+
+  public int getPipelineDepth() {
+    return depth;
+  }
+
+  public PipelineConfig getPipelineConfig() {
+    return config;
+  }
+
+  /**
+   * Replaces the predictor and BTB made from the config, so trained tables
+   * can be carried from one simulator to the next.
+   */
+  public void setBranchPredictor(BranchPredictor predictor, BranchTargetBuffer btb) {
+    this.predictor = predictor;
+    this.btb = btb;
+  }
+
+  /**
+   * Replaces the data cache made from the config, so a warm cache can be
+   * carried from one simulator to the next.
+   */
+  public void setDataCache(DataCache dataCache) {
+    this.dataCache = dataCache;
+  }
+
+  /**
+   * Turns on per-instruction profiling for the rest of the run; see
+   * {@link Profiler}.
+   */
+  public void enableProfiler() {
+    profiler = new Profiler(instructionMemory, config);
+    latchEntered = new long[latches.length];
+    for (int i = 0; i < latches.length; i++) {
+      latchEntered[i] = counters.cycles;
+      // Instructions already in flight weren't seen at fetch, so count the
+      // cycle per stage the profile assumes for them from here on
+      PipelineBuffer[] group = latches[i];
+      for (int slot = 0; slot < width && group[slot] != null; slot++) {
+        for (int stageNum = i + 2; stageNum <= depth; stageNum++) {
+          profiler.stage(group[slot].curPC, stageNum, 1);
+        }
+      }
     }
+  }
+
+  /**
+   * Returns the profile, or null unless {@link #enableProfiler()} was
+   * called. If instructions are still in flight, as after a cycle limit,
+   * the profile is a copy that charges them the cycles they have spent so
+   * far.
+   */
+  public Profiler getProfiler() {
+    if (profiler == null || inFlight == 0) {
+      return profiler;
+    }
+    Profiler current = profiler;
+    profiler = current.copy();
+    for (int i = 0; i < latches.length; i++) {
+      PipelineBuffer[] group = latches[i];
+      for (int slot = 0; slot < width && group[slot] != null; slot++) {
+        profileUnfinished(group[slot], i, counters.cycles);
+      }
+    }
+    Profiler snapshot = profiler;
+    profiler = current;
+    return snapshot;
+  }
+
+  public DataCache getDataCache() {
+    return dataCache;
+  }
+
+  /**
+   * Cycles lost to each flush: the killed stages between fetch and EX plus
+   * the cycle in which nothing is fetched.
+   */
+  public int getBranchPenalty() {
+    return executeStage - 1;
+  }
+
+  /**
+   * Reports the predictor and an estimate of the cycles it saved compared to
+   * predicting every branch not taken, which flushes on every taken branch.
+   */
+  public void reportBranchPrediction(PrintStream out) {
+    out.println("BRANCH PREDICTION");
+    out.println("predictor " + predictor.getName());
+    out.println("btb entries " + btb.getEntries() + " hits " + btb.getHits() + " misses "
+        + btb.getMisses());
+    out.println("prediction accuracy " + String.format("%.2f",
+        100 * counters.getPredictionAccuracy()) + "%");
+    long flushesSaved = counters.branchesTaken - counters.branchFlushes;
+    out.println("flushes saved " + flushesSaved);
+    out.println("cycles saved " + flushesSaved * getBranchPenalty());
+  }
+
+  /**
+   * Returns the address of the next instruction to fetch. Once the pipeline
+   * has drained this is where execution continues.
+   */
+  public int getPC() {
+    return pc;
+  }
+
+  /**
+   * Stops fetching after limit instructions, as if instruction memory ended
+   * there. The pipeline then drains and {@link #runCycle()} returns false, so
+   * the state can be handed back to a {@link FunctionalSimulator}.
+   */
+  public void setFetchLimit(long limit) {
+    fetchLimit = limit;
+  }
+
+  /**
+   * Stops the simulation once limit cycles have been simulated, whether or
+   * not the program has finished.
+   */
+  public void setCycleLimit(long limit) {
+    cycleLimit = limit;
+  }
+
+  /**
+   * Returns true once the pipeline is empty and there is nothing left to
+   * fetch, false if the run stopped at the cycle limit.
+   */
+  public boolean isFinished() {
+    return !keepGoing();
+  }
+
+  public PerformanceCounters getCounters() {
+    return counters;
+  }
+
+  /**
+   * Sets where the counters are reported at the end of
+   * {@link #runSimulation()}. Null (the default) disables the report.
+   */
+  public void setReportStream(PrintStream reportStream) {
+    this.reportStream = reportStream;
+  }
+
+  /**
+   * Writes a checkpoint to path every interval cycles while
+   * {@link #runSimulation()} runs, replacing the previous one. An interval of
+   * 0 (the default) disables checkpointing.
+   */
+  public void setCheckpointInterval(long interval, String path) {
+    checkpointInterval = interval;
+    checkpointPath = path;
+  }
+
+  /**
+   * Saves the complete simulator state at the end of the current cycle:
+   * registers, memory, counters, the in-flight pipeline buffers and the
+   * length of the trace written so far. The file is written next to path and
+   * then renamed, so an interrupted write never replaces a good checkpoint.
+   */
+  public void writeCheckpoint(String path) throws IOException {
+    long tracePosition = trace.checkpoint();
+    File target = new File(path);
+    File temp = new File(path + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(temp)));
+    try {
+      Checkpoint.writeHeader(out);
+      out.writeLong(tracePosition);
+      out.writeInt(instructionMemory.size());
+      out.writeInt(pc);
+      out.writeInt(cc);
+      out.writeInt(instructionsFetched);
+      out.writeBoolean(endOfInstructionMem);
+      out.writeBoolean(finishedLastCycle);
+      out.writeBoolean(stalling);
+      out.writeBoolean(killing);
+      out.writeInt(latches.length);
+      out.writeInt(width);
+      out.writeInt(latchesFilled);
+      for (PipelineBuffer[] group : latches) {
+        for (PipelineBuffer buffer : group) {
+          out.writeBoolean(buffer != null);
+          if (buffer != null) {
+            out.writeInt(buffer.instructNum);
+            out.writeInt(buffer.curPC);
+            buffer.writeTo(out);
+          }
+        }
+      }
+      Checkpoint.writeState(machineState, out);
+      predictor.writeTo(out);
+      btb.writeTo(out);
+      scoreboard.writeTo(out);
+      out.writeInt(memoryInstruction);
+      out.writeInt(memoryWait);
+      out.writeBoolean(dataCache != null);
+      if (dataCache != null) {
+        dataCache.writeTo(out);
+      }
+      counters.writeTo(out);
+    } finally {
+      out.close();
+    }
+    // renameTo won't replace an existing file on some platforms
+    if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target))) {
+      temp.delete();
+      throw new IOException("Couldn't replace checkpoint " + target);
+    }
+  }
+
+  /**
+   * Restores the state saved by {@link #writeCheckpoint(String)}, after the
+   * header and trace position have been read.
+   */
+  private void readCheckpoint(DataInput in) throws IOException {
+    if (in.readInt() != instructionMemory.size()) {
+      throw new IOException("Checkpoint was taken from a different program!");
+    }
+    pc = in.readInt();
+    cc = in.readInt();
+    instructionsFetched = in.readInt();
+    endOfInstructionMem = in.readBoolean();
+    finishedLastCycle = in.readBoolean();
+    stalling = in.readBoolean();
+    killing = in.readBoolean();
+    if (in.readInt() != latches.length) {
+      throw new IOException("Checkpoint was taken on a pipeline of a different depth!");
+    }
+    if (in.readInt() != width) {
+      throw new IOException("Checkpoint was taken on a pipeline of a different width!");
+    }
+    latchesFilled = in.readInt();
+    inFlight = 0;
+    for (PipelineBuffer[] group : latches) {
+      for (int slot = 0; slot < width; slot++) {
+        bufferPool.release(group[slot]);
+        group[slot] = null;
+        if (in.readBoolean()) {
+          int instructNum = in.readInt();
+          int curPC = in.readInt();
+          if (curPC < 0 || curPC >= instructionMemory.size()) {
+            throw new IOException("Checkpoint has an invalid PC " + curPC);
+          }
+          group[slot] = bufferPool.acquire(instructionMemory.get(curPC), instructNum);
+          group[slot].curPC = curPC;
+          group[slot].readFrom(in);
+          inFlight++;
+        }
+      }
+    }
+    Checkpoint.readState(machineState, in);
+    predictor.readFrom(in);
+    btb.readFrom(in);
+    scoreboard.readFrom(in);
+    memoryInstruction = in.readInt();
+    memoryWait = in.readInt();
+    if (in.readBoolean() != (dataCache != null)) {
+      throw new IOException("Checkpoint was taken with a different data cache!");
+    }
+    if (dataCache != null) {
+      dataCache.readFrom(in);
+    }
+    counters.readFrom(in);
+  }
+
+  /**
+   * Loads the program at inputPath and restores a checkpoint of it, cutting
+   * the trace at outputPath back to where the checkpoint was taken. The trace
+   * options must match those of the run that wrote the checkpoint for the
+   * resumed trace to be identical.
+   */
+  public static Simulator resume(String inputPath, String checkpointPath, String outputPath,
+      TraceLevel level, boolean echo, boolean binary) throws IOException {
+    return resume(inputPath, checkpointPath, outputPath, level, echo, binary,
+        PipelineConfig.DEFAULT);
+  }
+
+  /**
+   * Resumes a checkpoint taken on a pipeline built from config.
+   */
+  public static Simulator resume(String inputPath, String checkpointPath, String outputPath,
+      TraceLevel level, boolean echo, boolean binary, PipelineConfig config)
+      throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(checkpointPath)));
+    try {
+      Checkpoint.readHeader(in);
+      long tracePosition = in.readLong();
+      InputParser parser = parse(inputPath);
+      Trace trace;
+      if (binary) {
+        trace = new BinaryTrace(outputPath, tracePosition, level);
+      } else {
+        trace = new TextTrace(outputPath, tracePosition, level, echo, config.getLabels());
+      }
+      Simulator sim = new Simulator(parser, trace, config);
+      sim.readCheckpoint(in);
+      return sim;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Simulates one clock cycle. Returns false without doing anything once the
+   * pipeline is empty and there is nothing left to fetch, or the cycle limit
+   * has been reached.
+   */
+  public boolean runCycle() {
+    if (!keepGoing() || counters.cycles >= cycleLimit) {
+      return false;
+    }
+    trace.beginCycle(cc);
+    long memoryStalls = counters.memoryStalls;
+    runStages();
+    scoreboard.endCycle(counters.memoryStalls != memoryStalls);
+    cc++;
+    counters.cycles++;
+    trace.endCycle();
+    if (checkpointInterval > 0 && counters.cycles % checkpointInterval == 0) {
+      try {
+        writeCheckpoint(checkpointPath);
+      } catch (IOException e) {
+        outputFailed(e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Keeps the first error writing the trace or a checkpoint and reports it
+   * on System.err, as System.out may be a server's response channel.
+   */
+  private void outputFailed(IOException e) {
+    if (outputError == null) {
+      outputError = e;
+    }
+    System.err.println(e.toString());
+  }
+
+  /**
+   * Returns the first error writing the trace or a periodic checkpoint in
+   * {@link #runSimulation()}, or null if every write succeeded.
+   */
+  public IOException getOutputError() {
+    return outputError;
+  }
+
+  public void runSimulation() {
+    do {
+      if (eventDriven) {
+        skipIdleCycles();
+      }
+    } while (runCycle());
     printResults();
     try {
-      outputWriter.flush();
-      outputWriter.close();
-    } catch (Exception e) {
-      System.out.println(e.toString());
+      trace.close();
+    } catch (IOException e) {
+      outputFailed(e);
+    }
+    if (reportStream != null) {
+      counters.report(reportStream);
+      reportBranchPrediction(reportStream);
+      if (dataCache != null) {
+        dataCache.report(reportStream);
+        reportStream.println("idle cycles skipped " + cyclesSkipped);
+      }
     }
   }
 
@@ -406,10 +1164,11 @@ public class Simulator {
    */
   public static void main(String[] args) {
     String inputPath = null;
-    System.out.println(new File(".").getAbsolutePath());
     if (args.length > 0) {
-      inputPath = args[0];
+      runFromArgs(args);
     } else {
+      // Relative input paths are resolved against this
+      System.out.println(new File(".").getAbsolutePath());
       String doAnother = null;
       do {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
@@ -430,9 +1189,13 @@ public class Simulator {
            System.exit(1);
         }
         
-        Simulator sim = new Simulator(inputPath, outputPath);
-        sim.runSimulation();
-        
+        try {
+          Simulator sim = new Simulator(inputPath, outputPath);
+          sim.runSimulation();
+        } catch (IOException e) {
+          System.out.println(e.toString());
+        }
+
         System.out.print("Run another simulation (y/n): ");
         try {
           doAnother = reader.readLine();
@@ -445,4 +1208,449 @@ public class Simulator {
     }
     
   }
+
+  /**
+   * Runs one simulation from command line arguments:
+   * [-functional | -verify] [-trace none|summary|full] [-echo] [-binary]
+   * inputPath outputPath
+   * or
+   * -batch [-threads n] [-trace none|summary|full] [-binary]
+   * inputDirOrManifest outputDir
+   * or
+   * -sweep [-threads n] [-configs dirOrManifest | -pipeline config]
+   * [-vary key=value1,value2,...]... inputPath tablePath
+   * or
+   * -server [-threads n] [-queue n] [-max-cycles n]
+   *
+   * -image-out dir writes the final contents of every memory image to dir.
+   * -fast-forward n and -fast-forward-pc pc execute functionally until n
+   * instructions have run or the PC is reached, then simulate the rest of the
+   * program in detail.
+   * -checkpoint-every n saves the simulator state every n cycles to the
+   * -checkpoint file (outputPath.ckpt by default). -resume file continues a
+   * run from a checkpoint, appending to the trace at outputPath; the other
+   * trace options must match the original run.
+   * -sample runs functionally and simulates a window of -sample-window
+   * instructions in detail every -sample-period instructions, after
+   * -sample-warmup instructions to fill the pipeline, then reports CPI, stall
+   * and flush rates with 95% confidence intervals.
+   * -pipeline config simulates the pipeline described by a
+   * {@link PipelineConfig} properties file instead of the default one, and
+   * -predictor kind overrides its branch predictor and -issue-width n its
+   * issue width. -no-skip simulates cycles spent waiting on a cache miss one
+   * by one instead of skipping them; the trace is the same. -max-cycles n
+   * stops the simulation after n cycles. -profile file writes a
+   * {@link Profiler} listing of where the cycles went to file.
+   *
+   * -functional skips the pipeline model and only writes the final registers
+   * and memory. -verify runs both models and checks they agree. -batch runs
+   * every input through a {@link BatchRunner} and writes summary.txt to the
+   * output directory. -multicore runs every input on its own core of a
+   * {@link MulticoreSimulator} with up to -threads host threads, sharing
+   * memory, and writes a trace per core
+   * and summary.txt to the output directory. -server reads jobs from stdin
+   * and runs them on a {@link SimulationServer} with -threads workers, at
+   * most -queue jobs waiting and -max-cycles as the default cycle limit.
+   * -sweep runs inputPath under every combination of the -vary values on
+   * top of each config in -configs, or of the -pipeline config, on a
+   * {@link DesignSweep} and writes a table of the results, JSON if tablePath
+   * ends in .json and CSV otherwise; -predictor and -issue-width set the
+   * base properties. -echo copies
+   * the text trace to the console and -binary writes the trace in the
+   * {@link BinaryTrace} format instead.
+   */
+  private static void runFromArgs(String[] args) {
+    String mode = null;
+    TraceLevel level = TraceLevel.FULL;
+    boolean echo = false;
+    boolean binary = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int queueLimit = 64;
+    long cycleLimit = Long.MAX_VALUE;
+    String imageDir = null;
+    long fastForward = 0;
+    int fastForwardPC = -1;
+    long checkpointInterval = 0;
+    String checkpointPath = null;
+    String resumePath = null;
+    PipelineConfig config = PipelineConfig.DEFAULT;
+    String pipelinePath = null;
+    String profilePath = null;
+    String configSource = null;
+    List<String> axes = new ArrayList<String>();
+    String predictorKind = null;
+    int issueWidth = 0;
+    boolean skipIdle = true;
+    long samplePeriod = 10000;
+    long sampleWarmup = 50;
+    long sampleWindow = 1000;
+    long sampleSeed = 1;
+    List<String> paths = new ArrayList<String>();
+    for (int argNum = 0; argNum < args.length; argNum++) {
+      String arg = args[argNum];
+      if (arg.equals("-functional") || arg.equals("-verify") || arg.equals("-batch")
+          || arg.equals("-sample") || arg.equals("-multicore") || arg.equals("-server")
+          || arg.equals("-sweep")) {
+        mode = arg;
+      } else if (arg.equals("-threads") && argNum + 1 < args.length) {
+        threads = Integer.parseInt(args[++argNum]);
+      } else if (arg.equals("-queue") && argNum + 1 < args.length) {
+        queueLimit = Integer.parseInt(args[++argNum]);
+      } else if (arg.equals("-max-cycles") && argNum + 1 < args.length) {
+        cycleLimit = Long.parseLong(args[++argNum]);
+      } else if (arg.equals("-trace") && argNum + 1 < args.length) {
+        level = TraceLevel.valueOf(args[++argNum].toUpperCase());
+      } else if (arg.equals("-image-out") && argNum + 1 < args.length) {
+        imageDir = args[++argNum];
+      } else if (arg.equals("-fast-forward") && argNum + 1 < args.length) {
+        fastForward = Long.parseLong(args[++argNum]);
+      } else if (arg.equals("-fast-forward-pc") && argNum + 1 < args.length) {
+        fastForwardPC = Integer.parseInt(args[++argNum]);
+        fastForward = Long.MAX_VALUE;
+      } else if (arg.equals("-checkpoint-every") && argNum + 1 < args.length) {
+        checkpointInterval = Long.parseLong(args[++argNum]);
+      } else if (arg.equals("-checkpoint") && argNum + 1 < args.length) {
+        checkpointPath = args[++argNum];
+      } else if (arg.equals("-resume") && argNum + 1 < args.length) {
+        resumePath = args[++argNum];
+      } else if (arg.equals("-sample-period") && argNum + 1 < args.length) {
+        samplePeriod = Long.parseLong(args[++argNum]);
+      } else if (arg.equals("-sample-warmup") && argNum + 1 < args.length) {
+        sampleWarmup = Long.parseLong(args[++argNum]);
+      } else if (arg.equals("-sample-window") && argNum + 1 < args.length) {
+        sampleWindow = Long.parseLong(args[++argNum]);
+      } else if (arg.equals("-sample-seed") && argNum + 1 < args.length) {
+        sampleSeed = Long.parseLong(args[++argNum]);
+      } else if (arg.equals("-pipeline") && argNum + 1 < args.length) {
+        pipelinePath = args[++argNum];
+        try {
+          config = PipelineConfig.load(pipelinePath);
+        } catch (IOException e) {
+          System.out.println(e.toString());
+          System.exit(1);
+        }
+      } else if (arg.equals("-profile") && argNum + 1 < args.length) {
+        profilePath = args[++argNum];
+      } else if (arg.equals("-configs") && argNum + 1 < args.length) {
+        configSource = args[++argNum];
+      } else if (arg.equals("-vary") && argNum + 1 < args.length) {
+        axes.add(args[++argNum]);
+      } else if (arg.equals("-predictor") && argNum + 1 < args.length) {
+        predictorKind = args[++argNum];
+      } else if (arg.equals("-issue-width") && argNum + 1 < args.length) {
+        issueWidth = Integer.parseInt(args[++argNum]);
+      } else if (arg.equals("-no-skip")) {
+        skipIdle = false;
+      } else if (arg.equals("-echo")) {
+        echo = true;
+      } else if (arg.equals("-binary")) {
+        binary = true;
+      } else if (arg.startsWith("-")) {
+        System.out.println("Unknown option: " + arg);
+        System.exit(1);
+      } else {
+        paths.add(arg);
+      }
+    }
+    if (threads < 1 || queueLimit < 1) {
+      String message = (threads < 1 ? "-threads" : "-queue") + " must be at least 1";
+      // A server's client reads stdout as responses
+      System.out.println("-server".equals(mode) ? "error - " + message : message);
+      System.exit(1);
+    }
+    if ("-server".equals(mode) && paths.isEmpty()) {
+      runServer(threads, queueLimit, cycleLimit);
+      return;
+    }
+    if (paths.size() != 2) {
+      System.out.println("Usage: Simulator [-functional | -verify] [-trace none|summary|full]"
+          + " [-echo] [-binary] [-image-out dir] [-fast-forward n | -fast-forward-pc pc]"
+          + " [-checkpoint-every n] [-checkpoint file] [-resume file] [-pipeline config]"
+          + " [-predictor not-taken|taken|1-bit|2-bit|gshare] [-issue-width n] [-no-skip]"
+          + " [-max-cycles n] [-profile file] inputPath outputPath");
+      System.out.println("       Simulator -sample [-sample-period n] [-sample-warmup n]"
+          + " [-sample-window n] [-sample-seed n] [-pipeline config] [-predictor kind]"
+          + " [-issue-width n] inputPath outputPath");
+      System.out.println("       Simulator -batch [-threads n] [-trace none|summary|full]"
+          + " [-binary] [-pipeline config] [-predictor kind] [-issue-width n]"
+          + " inputDirOrManifest outputDir");
+      System.out.println("       Simulator -multicore [-threads n] [-trace none|summary|full]"
+          + " [-binary]"
+          + " [-pipeline config] [-predictor kind] [-issue-width n] inputDirOrManifest"
+          + " outputDir");
+      System.out.println("       Simulator -sweep [-threads n] [-configs dirOrManifest |"
+          + " -pipeline config] [-vary key=value1,value2,...]... [-predictor kind]"
+          + " [-issue-width n] [-max-cycles n] inputPath table.csv|table.json");
+      System.out.println("       Simulator -server [-threads n] [-queue n] [-max-cycles n]");
+      System.exit(1);
+    }
+    if ("-sweep".equals(mode)) {
+      runSweep(paths.get(0), paths.get(1), threads, configSource, pipelinePath, axes,
+          predictorKind, issueWidth, cycleLimit);
+      return;
+    }
+    if (predictorKind != null) {
+      try {
+        config = config.withBranchPredictor(predictorKind, config.getPredictorEntries(),
+            config.getHistoryBits(), config.getBtbEntries());
+      } catch (IllegalArgumentException e) {
+        System.out.println(e.getMessage());
+        System.exit(1);
+      }
+    }
+    if (issueWidth != 0) {
+      try {
+        config = config.withIssueWidth(issueWidth);
+      } catch (IllegalArgumentException e) {
+        System.out.println(e.getMessage());
+        System.exit(1);
+      }
+    }
+    String inputPath = paths.get(0);
+    String outputPath = paths.get(1);
+    if ("-batch".equals(mode)) {
+      runBatch(inputPath, outputPath, threads, level, binary, config);
+      return;
+    }
+    if ("-multicore".equals(mode)) {
+      runMulticore(inputPath, outputPath, threads, level, binary, config);
+      return;
+    }
+    if (checkpointPath == null) {
+      checkpointPath = outputPath + ".ckpt";
+    }
+    if (mode == null && resumePath != null) {
+      try {
+        Simulator sim = resume(inputPath, resumePath, outputPath, level, echo, binary, config);
+        System.out.println("Resumed at cycle " + sim.cc);
+        sim.setCheckpointInterval(checkpointInterval, checkpointPath);
+        sim.setEventDriven(skipIdle);
+        sim.setCycleLimit(cycleLimit);
+        sim.setReportStream(System.out);
+        if (profilePath != null) {
+          sim.enableProfiler();
+        }
+        sim.runSimulation();
+        if (profilePath != null) {
+          writeProfile(sim.getProfiler(), profilePath);
+        }
+        if (imageDir != null) {
+          writeImages(sim.getMachineState(), imageDir);
+        }
+      } catch (IOException e) {
+        System.out.println(e.toString());
+        System.exit(1);
+      }
+      return;
+    }
+    Trace trace = openTrace(outputPath, level, echo, binary, config.getLabels());
+    try {
+      MachineState finalState;
+      if (mode == null && fastForward > 0) {
+        FunctionalSimulator fast = new FunctionalSimulator(inputPath);
+        fast.fastForward(fastForward, fastForwardPC);
+        System.out.println("Fast-forwarded " + fast.getInstructionsExecuted()
+            + " instructions to PC " + fast.getPC());
+        Simulator sim = new Simulator(fast.getInstructionMemory(), fast.getMachineState(),
+            fast.getPC(), trace, config);
+        sim.setCheckpointInterval(checkpointInterval, checkpointPath);
+        sim.setEventDriven(skipIdle);
+        sim.setCycleLimit(cycleLimit);
+        sim.setReportStream(System.out);
+        if (profilePath != null) {
+          sim.enableProfiler();
+        }
+        sim.runSimulation();
+        if (profilePath != null) {
+          writeProfile(sim.getProfiler(), profilePath);
+        }
+        finalState = sim.getMachineState();
+      } else if (mode == null) {
+        Simulator sim = new Simulator(inputPath, trace, config);
+        sim.setCheckpointInterval(checkpointInterval, checkpointPath);
+        sim.setEventDriven(skipIdle);
+        sim.setCycleLimit(cycleLimit);
+        sim.setReportStream(System.out);
+        if (profilePath != null) {
+          sim.enableProfiler();
+        }
+        sim.runSimulation();
+        if (profilePath != null) {
+          writeProfile(sim.getProfiler(), profilePath);
+        }
+        finalState = sim.getMachineState();
+      } else if (mode.equals("-sample")) {
+        SampledSimulator sim = new SampledSimulator(inputPath, samplePeriod, sampleWarmup,
+            sampleWindow, sampleSeed);
+        sim.setPipelineConfig(config);
+        sim.run();
+        sim.getFunctionalSimulator().printResults(trace);
+        sim.report(System.out);
+        finalState = sim.getMachineState();
+      } else if (mode.equals("-functional")) {
+        FunctionalSimulator sim = new FunctionalSimulator(inputPath);
+        sim.run();
+        sim.printResults(trace);
+        finalState = sim.getMachineState();
+      } else {
+        Simulator sim = new Simulator(inputPath, trace, config);
+        sim.setCycleLimit(cycleLimit);
+        sim.runSimulation();
+        FunctionalSimulator reference = new FunctionalSimulator(inputPath);
+        reference.run();
+        if (!sim.isFinished()) {
+          System.out.println("ERROR: pipeline didn't finish within " + cycleLimit + " cycles!");
+          System.exit(2);
+        } else if (FunctionalSimulator.sameState(sim.getMachineState(),
+            reference.getMachineState())) {
+          System.out.println("Pipeline and functional results match.");
+        } else {
+          System.out.println("ERROR: pipeline and functional results differ!");
+          System.exit(2);
+        }
+        finalState = sim.getMachineState();
+      }
+      if (imageDir != null) {
+        writeImages(finalState, imageDir);
+      }
+    } catch (IOException e) {
+      System.out.println(e.toString());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Writes a profile report to a file.
+   */
+  public static void writeProfile(Profiler profiler, String path) throws IOException {
+    PrintStream out = new PrintStream(path);
+    try {
+      profiler.report(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes every memory image of a machine state to a directory, named after
+   * the image files they were loaded from.
+   */
+  public static void writeImages(MachineState machineState, String dir) throws IOException {
+    new File(dir).mkdirs();
+    for (MemoryImage image : machineState.getImages()) {
+      image.writeTo(new File(dir, image.getName()).getPath());
+    }
+  }
+
+  private static void runBatch(String source, String outputDir, int threads, TraceLevel level,
+      boolean binary, PipelineConfig config) {
+    try {
+      BatchRunner runner = new BatchRunner(source, outputDir, threads, level, binary);
+      runner.setPipelineConfig(config);
+      List<BatchRunner.Result> results = runner.run();
+      BatchRunner.printSummary(results, System.out);
+      PrintStream summary = new PrintStream(new File(outputDir, "summary.txt"));
+      try {
+        BatchRunner.printSummary(results, summary);
+      } finally {
+        summary.close();
+      }
+    } catch (IOException e) {
+      System.out.println(e.toString());
+      System.exit(1);
+    } catch (InterruptedException e) {
+      System.out.println("Batch interrupted!");
+      System.exit(1);
+    }
+  }
+
+  private static void runMulticore(String source, String outputDir, int threads,
+      TraceLevel level, boolean binary, PipelineConfig config) {
+    try {
+      MulticoreSimulator multicore = new MulticoreSimulator(
+          BatchRunner.listInputs(new File(source)), outputDir, threads, level, binary);
+      multicore.setPipelineConfig(config);
+      multicore.run();
+      multicore.report(System.out);
+      PrintStream summary = new PrintStream(new File(outputDir, "summary.txt"));
+      try {
+        multicore.report(summary);
+      } finally {
+        summary.close();
+      }
+    } catch (IOException e) {
+      System.out.println(e.toString());
+      System.exit(1);
+    } catch (InterruptedException e) {
+      System.out.println("Multicore run interrupted!");
+      System.exit(1);
+    }
+  }
+
+  private static void runServer(int threads, int queueLimit, long cycleLimit) {
+    try {
+      new SimulationServer(System.in, System.out, threads, queueLimit, cycleLimit).serve();
+    } catch (IOException e) {
+      System.out.println(e.toString());
+      System.exit(1);
+    } catch (InterruptedException e) {
+      System.out.println("Server interrupted!");
+      System.exit(1);
+    }
+  }
+
+  private static void runSweep(String inputPath, String tablePath, int threads,
+      String configSource, String pipelinePath, List<String> axes, String predictorKind,
+      int issueWidth, long cycleLimit) {
+    try {
+      List<String> basePaths = new ArrayList<String>();
+      if (configSource != null) {
+        basePaths.addAll(BatchRunner.listInputs(new File(configSource)));
+      } else if (pipelinePath != null) {
+        basePaths.add(pipelinePath);
+      } else {
+        basePaths.add(null);
+      }
+      long start = System.nanoTime();
+      DesignSweep sweep = new DesignSweep(new SharedProgram(inputPath));
+      sweep.setCycleLimit(cycleLimit);
+      for (String basePath : basePaths) {
+        Properties base = new Properties();
+        String name = "default";
+        if (basePath != null) {
+          base = PipelineConfig.loadProperties(basePath);
+          name = new File(basePath).getName();
+          if (name.endsWith(".properties")) {
+            name = name.substring(0, name.length() - ".properties".length());
+          }
+        }
+        if (predictorKind != null) {
+          base.setProperty("predictor", predictorKind);
+        }
+        if (issueWidth != 0) {
+          base.setProperty("issue.width", Integer.toString(issueWidth));
+        }
+        sweep.addCombinations(name, base, axes);
+      }
+      DesignSweep.Result[] results = sweep.run(threads);
+      PrintStream table = new PrintStream(tablePath);
+      try {
+        if (tablePath.endsWith(".json")) {
+          DesignSweep.writeJson(results, table);
+        } else {
+          DesignSweep.writeCsv(results, table);
+        }
+      } finally {
+        table.close();
+      }
+      System.out.println("Swept " + results.length + " configs in "
+          + String.format("%.1f", (System.nanoTime() - start) / 1e6) + " ms");
+    } catch (IOException e) {
+      System.out.println(e.toString());
+      System.exit(1);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.exit(1);
+    }
+  }
 }
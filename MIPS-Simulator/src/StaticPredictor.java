@@ -0,0 +1,35 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Always predicts the same direction. Predicting not taken is the behaviour
+ * of the original pipeline, where every taken branch flushes.
+ */
+public class StaticPredictor implements BranchPredictor {
+  private boolean taken;
+
+  public StaticPredictor(boolean taken) {
+    this.taken = taken;
+  }
+
+  public int index(int pc) {
+    return 0;
+  }
+
+  public boolean predict(int index) {
+    return taken;
+  }
+
+  public void update(int index, boolean taken) {
+  }
+
+  public String getName() {
+    return taken ? "taken" : "not-taken";
+  }
+
+  public void writeTo(DataOutput out) {
+  }
+
+  public void readFrom(DataInput in) {
+  }
+}
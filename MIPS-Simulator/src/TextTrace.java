@@ -0,0 +1,237 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the trace in the text format:
+ *
+ * <pre>
+ * c#1 I1-IF1
+ * c#2 I1-IF2 I2-IF1
+ * ...
+ * REGISTERS
+ * R1 16
+ * MEMORY
+ * 8 40
+ * </pre>
+ *
+ * Numbers are formatted into a reusable char buffer so tracing a cycle does
+ * not build strings. Echoing to the console is optional and off by default.
+ * The trace only holds ASCII, so the number of chars written is also the
+ * length of the file.
+ */
+public class TextTrace implements Trace {
+  private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+  private Writer      outputWriter;
+  private boolean     traceCycles;
+  private boolean     traceResults;
+  private boolean     echo;
+  private char[][]    labels;
+  private char[]      digits;
+  private int         length;
+  private char[]      line;
+  private long        position;   // Chars written to outputWriter
+  private IOException writeError; // First failed write, for checkpoint() and close()
+
+  public TextTrace(String outputPath, TraceLevel level, boolean echo, String[] labels)
+      throws IOException {
+    this(new BufferedWriter(new FileWriter(outputPath)), level, echo, labels);
+  }
+
+  /**
+   * Continues a trace from a checkpoint. The file is cut back to
+   * resumePosition, dropping whatever was traced after the checkpoint.
+   */
+  public TextTrace(String outputPath, long resumePosition, TraceLevel level, boolean echo,
+      String[] labels) throws IOException {
+    this(openForResume(outputPath, resumePosition), level, echo, labels);
+    position = resumePosition;
+  }
+
+  private static Writer openForResume(String outputPath, long resumePosition)
+      throws IOException {
+    Checkpoint.truncate(outputPath, resumePosition);
+    return new BufferedWriter(new FileWriter(outputPath, true));
+  }
+
+  public TextTrace(Writer outputWriter, TraceLevel level, boolean echo, String[] labels) {
+    this.outputWriter = outputWriter;
+    this.traceCycles = level == TraceLevel.FULL;
+    this.traceResults = level != TraceLevel.NONE;
+    this.echo = echo;
+    this.labels = new char[labels.length][];
+    for (int i = 0; i < labels.length; i++) {
+      this.labels[i] = labels[i].toCharArray();
+    }
+    digits = new char[11];
+    line = new char[256];
+    length = 0;
+    position = 0;
+  }
+
+  public void beginCycle(int cycle) {
+    if (traceCycles) {
+      append('c');
+      append('#');
+      appendNumber(cycle);
+    }
+  }
+
+  public void stage(int instructNum, int event) {
+    if (traceCycles) {
+      append(' ');
+      append('I');
+      appendNumber(instructNum);
+      append('-');
+      char[] label = labels[event];
+      for (int i = 0; i < label.length; i++) {
+        append(label[i]);
+      }
+    }
+  }
+
+  public void endCycle() {
+    if (traceCycles) {
+      newLine();
+    }
+  }
+
+  public boolean tracesCycles() {
+    return traceCycles;
+  }
+
+  public void beginRegisters() {
+    if (traceResults) {
+      appendString("REGISTERS");
+      newLine();
+    }
+  }
+
+  public void register(int regNum, long value) {
+    if (traceResults) {
+      append('R');
+      appendNumber(regNum);
+      append(' ');
+      appendNumber(value);
+      newLine();
+    }
+  }
+
+  public void beginMemory() {
+    if (traceResults) {
+      appendString("MEMORY");
+      newLine();
+    }
+  }
+
+  public void memory(int address, long value) {
+    if (traceResults) {
+      appendNumber(address);
+      append(' ');
+      appendNumber(value);
+      newLine();
+    }
+  }
+
+  public long checkpoint() throws IOException {
+    flushLine();
+    outputWriter.flush();
+    if (writeError != null) {
+      throw writeError;
+    }
+    return position;
+  }
+
+  public void close() throws IOException {
+    try {
+      outputWriter.flush();
+    } finally {
+      outputWriter.close();
+    }
+    if (writeError != null) {
+      throw writeError;
+    }
+  }
+
+  /**
+   * Keeps the first write error for the caller instead of printing it, as
+   * System.out may be a server's response channel.
+   */
+  private void writeFailed(IOException e) {
+    if (writeError == null) {
+      writeError = e;
+    }
+  }
+
+  private void append(char c) {
+    if (length == line.length) {
+      flushLine();
+    }
+    line[length++] = c;
+  }
+
+  private void appendString(String str) {
+    for (int i = 0; i < str.length(); i++) {
+      append(str.charAt(i));
+    }
+  }
+
+  private void appendNumber(long value) {
+    if (value == (int) value) {
+      appendNumber((int) value);
+    } else {
+      appendString(Long.toString(value));
+    }
+  }
+
+  private void appendNumber(int value) {
+    if (value == Integer.MIN_VALUE) {
+      appendString(Integer.toString(value));
+      return;
+    }
+    if (value < 0) {
+      append('-');
+      value = -value;
+    }
+    int pos = digits.length;
+    do {
+      digits[--pos] = (char) ('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    while (pos < digits.length) {
+      append(digits[pos++]);
+    }
+  }
+
+  private void newLine() {
+    flushLine();
+    try {
+      if (outputWriter instanceof BufferedWriter) {
+        ((BufferedWriter) outputWriter).newLine();
+      } else {
+        outputWriter.write(LINE_SEPARATOR);
+      }
+      position += LINE_SEPARATOR.length();
+    } catch (IOException e) {
+      writeFailed(e);
+    }
+    if (echo) {
+      System.out.println();
+    }
+  }
+
+  private void flushLine() {
+    try {
+      outputWriter.write(line, 0, length);
+      position += length;
+    } catch (IOException e) {
+      writeFailed(e);
+    }
+    if (echo) {
+      System.out.print(new String(line, 0, length));
+    }
+    length = 0;
+  }
+}
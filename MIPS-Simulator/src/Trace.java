@@ -0,0 +1,40 @@
+import java.io.IOException;
+
+/**
+ * Receives the events of a simulation run: which instruction occupied which
+ * stage in every cycle, followed by the final registers and memory.
+ *
+ * Stage events are identified by stage number, matching the index of the
+ * stage label; {@link #STALL} marks an instruction stalled in its stage.
+ */
+public interface Trace {
+  public static final int STALL = 0;
+
+  public void beginCycle(int cycle);
+
+  public void stage(int instructNum, int event);
+
+  public void endCycle();
+
+  /**
+   * Returns true if stage events are recorded. When false a caller can skip
+   * the work of producing them, but must still begin and end each cycle.
+   */
+  public boolean tracesCycles();
+
+  public void beginRegisters();
+
+  public void register(int regNum, long value);
+
+  public void beginMemory();
+
+  public void memory(int address, long value);
+
+  /**
+   * Flushes everything traced so far and returns the length of the output in
+   * bytes, so a run resumed from a checkpoint can continue the file from here.
+   */
+  public long checkpoint() throws IOException;
+
+  public void close() throws IOException;
+}
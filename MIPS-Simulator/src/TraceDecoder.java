@@ -0,0 +1,155 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays a {@link BinaryTrace} file into another {@link Trace}, by default
+ * regenerating the text format written by {@link TextTrace}.
+ */
+public class TraceDecoder {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private FileChannel channel;
+  private ByteBuffer  buffer;
+  private String[]    labels;
+
+  public TraceDecoder(String binaryPath) throws IOException {
+    channel = new FileInputStream(binaryPath).getChannel();
+    buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    buffer.flip();
+    readHeader();
+  }
+
+  private void readHeader() throws IOException {
+    fill(12);
+    if (buffer.getInt() != BinaryTrace.MAGIC) {
+      throw new IOException("Not a binary trace file!");
+    }
+    int version = buffer.getInt();
+    if (version != BinaryTrace.VERSION) {
+      throw new IOException("Unsupported binary trace version: " + version);
+    }
+    labels = new String[buffer.getInt()];
+    for (int i = 0; i < labels.length; i++) {
+      fill(2);
+      char[] chars = new char[buffer.getShort()];
+      fill(chars.length);
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = (char) buffer.get();
+      }
+      labels[i] = new String(chars);
+    }
+  }
+
+  /**
+   * Makes sure at least count bytes are buffered. Returns false at end of
+   * file.
+   */
+  private boolean fill(int count) throws IOException {
+    if (buffer.remaining() >= count) {
+      return true;
+    }
+    buffer.compact();
+    while (buffer.position() < count) {
+      if (channel.read(buffer) < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+    if (buffer.remaining() == 0) {
+      return false;
+    } else if (buffer.remaining() < count) {
+      throw new IOException("Truncated binary trace file!");
+    }
+    return true;
+  }
+
+  /**
+   * Reads a number written by BinaryTrace, undoing the varint and zigzag
+   * encoding.
+   */
+  private long getNumber() throws IOException {
+    long bits = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!fill(1)) {
+        throw new IOException("Truncated binary trace file!");
+      }
+      byte b = buffer.get();
+      bits |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return (bits >>> 1) ^ -(bits & 1);
+      }
+    }
+    throw new IOException("Bad number in binary trace file!");
+  }
+
+  /**
+   * Returns the stage labels stored in the header.
+   */
+  public String[] getLabels() {
+    return labels;
+  }
+
+  /**
+   * Feeds every record to target and closes both files.
+   */
+  public void replay(Trace target) throws IOException {
+    try {
+      int lastInstruction = 0;
+      while (fill(1)) {
+        int type = buffer.get() & 0xFF;
+        if ((type & BinaryTrace.STAGE) != 0) {
+          lastInstruction += (int) getNumber();
+          target.stage(lastInstruction, type & ~BinaryTrace.STAGE);
+          continue;
+        }
+        switch (type) {
+        case BinaryTrace.BEGIN_CYCLE:
+          target.beginCycle((int) getNumber());
+          lastInstruction = 0;
+          break;
+        case BinaryTrace.END_CYCLE:
+          target.endCycle();
+          break;
+        case BinaryTrace.BEGIN_REGISTERS:
+          target.beginRegisters();
+          break;
+        case BinaryTrace.REGISTER:
+          int regNum = (int) getNumber();
+          target.register(regNum, getNumber());
+          break;
+        case BinaryTrace.BEGIN_MEMORY:
+          target.beginMemory();
+          break;
+        case BinaryTrace.MEMORY:
+          int address = (int) getNumber();
+          target.memory(address, getNumber());
+          break;
+        default:
+          throw new IOException("Unknown record type: " + type);
+        }
+      }
+    } finally {
+      channel.close();
+      target.close();
+    }
+  }
+
+  /**
+   * Converts a binary trace to text: TraceDecoder binaryPath textPath
+   */
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.out.println("Usage: TraceDecoder binaryPath textPath");
+      System.exit(1);
+    }
+    try {
+      TraceDecoder decoder = new TraceDecoder(args[0]);
+      decoder.replay(new TextTrace(args[1], TraceLevel.FULL, false, decoder.getLabels()));
+    } catch (IOException e) {
+      System.out.println(e.toString());
+      System.exit(1);
+    }
+  }
+}
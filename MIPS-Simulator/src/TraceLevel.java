@@ -0,0 +1,11 @@
+/**
+ * How much of a simulation run is written to the trace.
+ */
+public enum TraceLevel {
+  /** Nothing is written. */
+  NONE,
+  /** Only the final registers and memory. */
+  SUMMARY,
+  /** Every stage of every cycle followed by the final registers and memory. */
+  FULL
+}